@@ -15,6 +15,7 @@ import java.util.jar.JarFile;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.montsuqi.monsiaj.util.Transfer;
 
 /**
  *
@@ -95,12 +96,8 @@ public class Loader {
         URL url = new URL(strURL);
         File tmp = File.createTempFile("monsiaj-bin-" + version + "-", ".zip");
         tmp.deleteOnExit();
-        BufferedInputStream in = new BufferedInputStream(con.getInputStream());
-        int length;
-        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
-            while ((length = in.read()) != -1) {
-                out.write(length);
-            }
+        try (InputStream in = con.getInputStream()) {
+            Transfer.copy(in, tmp, con.getContentLengthLong(), null);
         }
         con.disconnect();
         ZipUtils.unzip(tmp, cacheDir);
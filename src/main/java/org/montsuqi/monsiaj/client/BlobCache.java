@@ -0,0 +1,386 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.awt.Image;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.montsuqi.monsiaj.util.TempFile;
+
+/**
+ * <p>
+ * A two tier cache of the BLOBs of a session.</p>
+ * <p>
+ * The disk tier keeps the raw bytes in the temporary directory of the
+ * process. Files are named by the SHA-256 of their content, so the same data
+ * under several oids is stored once. An index maps each oid of the session to
+ * its content. The total size is bounded by monsia.blob_cache.max_size(MB,
+ * default 256). Hits touch the file, and the least recently used files are
+ * evicted first.</p>
+ * <p>
+ * The memory tier keeps decoded objects(icons) of the most recently used
+ * monsia.blob_cache.memory_entries oids(default 32), as long as their images
+ * stay within monsia.blob_cache.memory_size(MB, default 32). A decoder that
+ * makes a variant of the BLOB, such as an image scaled to a widget, caches
+ * it under the oid and a variant name.</p>
+ * <p>
+ * Only responses with status 200 are cached. An oid is invalidated when its
+ * fetch fails, when its cached bytes cannot be decoded and when a BLOB is
+ * posted under it; the whole cache is cleared when the session starts or
+ * ends. Set monsia.disable_blob_cache to fetch every time.</p>
+ */
+public class BlobCache {
+
+    private static final Logger logger = LogManager.getLogger(BlobCache.class);
+    private static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    private static final int DEFAULT_MEMORY_ENTRIES = 32;
+    private static final long DEFAULT_MEMORY_SIZE = 32L * 1024 * 1024;
+    private final Protocol protocol;
+    private final boolean enabled;
+    private final File dir;
+    private final long maxSize;
+    private final Map<String, String> index;
+    private final Map<String, Decoded> memory;
+    private final int maxEntries;
+    private final long maxMemory;
+    private long memoryBytes;
+    private final AtomicLong memoryHits;
+    private final AtomicLong diskHits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    BlobCache(Protocol protocol) {
+        this.protocol = protocol;
+        this.enabled = System.getProperty("monsia.disable_blob_cache") == null;
+        this.dir = TempFile.createTempFile("blobcache", "");
+        long size = DEFAULT_MAX_SIZE;
+        if (System.getProperty("monsia.blob_cache.max_size") != null) {
+            size = Long.parseLong(System.getProperty("monsia.blob_cache.max_size")) * 1024 * 1024;
+        }
+        this.maxSize = size;
+        int entries = DEFAULT_MEMORY_ENTRIES;
+        if (System.getProperty("monsia.blob_cache.memory_entries") != null) {
+            entries = Integer.parseInt(System.getProperty("monsia.blob_cache.memory_entries"));
+        }
+        this.maxEntries = entries;
+        size = DEFAULT_MEMORY_SIZE;
+        if (System.getProperty("monsia.blob_cache.memory_size") != null) {
+            size = Long.parseLong(System.getProperty("monsia.blob_cache.memory_size")) * 1024 * 1024;
+        }
+        this.maxMemory = size;
+        this.memoryBytes = 0;
+        this.index = new HashMap<>();
+        this.memory = new LinkedHashMap<>(16, 0.75f, true);
+        memoryHits = new AtomicLong();
+        diskHits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    private static final class Decoded {
+
+        private final Object value;
+        private final long size;
+
+        Decoded(Object value) {
+            this.value = value;
+            this.size = weigh(value);
+        }
+    }
+
+    /*
+     * The heap an image takes once drawn, at 4 bytes a pixel. Other objects
+     * are counted by the number of entries only.
+     */
+    private static long weigh(Object value) {
+        if (value instanceof Image) {
+            Image image = (Image) value;
+            return Math.max(0L, (long) image.getWidth(null) * image.getHeight(null) * 4);
+        }
+        return 0;
+    }
+
+    private static String memoryKey(String oid, String variant) {
+        return variant == null ? oid : oid + "@" + variant;
+    }
+
+    private synchronized Object getMemory(String key) {
+        Decoded d = memory.get(key);
+        return d == null ? null : d.value;
+    }
+
+    private synchronized void putMemory(String key, Object value) {
+        Decoded d = new Decoded(value);
+        if (d.size > maxMemory) {
+            return;
+        }
+        Decoded old = memory.put(key, d);
+        if (old != null) {
+            memoryBytes -= old.size;
+        }
+        memoryBytes += d.size;
+        Iterator<Decoded> it = memory.values().iterator();
+        while ((memory.size() > maxEntries || memoryBytes > maxMemory) && it.hasNext()) {
+            memoryBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private synchronized File lookup(String oid) {
+        String digest = index.get(oid);
+        if (digest == null) {
+            return null;
+        }
+        File file = new File(dir, digest);
+        if (!file.exists()) {
+            // evicted
+            index.remove(oid);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * <p>
+     * Returns the cached file of the BLOB, fetching it if needed. The file
+     * belongs to the cache; callers must not modify it and should copy it if
+     * they keep it.</p>
+     */
+    private File fetch(String oid) throws IOException {
+        File file = lookup(oid);
+        if (file != null) {
+            diskHits.incrementAndGet();
+            return file;
+        }
+        misses.incrementAndGet();
+        dir.mkdirs();
+        File temp = File.createTempFile("fetch", ".tmp", dir);
+        boolean fetched = false;
+        try {
+            int status = protocol.getBLOB(oid, temp);
+            if (status != 200) {
+                return null;
+            }
+            String digest = sha256(temp);
+            file = new File(dir, digest);
+            synchronized (this) {
+                if (file.exists()) {
+                    file.setLastModified(System.currentTimeMillis());
+                } else {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                index.put(oid, digest);
+                evict(file);
+            }
+            fetched = true;
+            return file;
+        } finally {
+            temp.delete();
+            if (!fetched) {
+                // a failed or partial download leaves nothing behind
+                invalidate(oid);
+            }
+        }
+    }
+
+    private void evict(File keep) {
+        File[] files = dir.listFiles((File d, String name) -> !name.endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= maxSize) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (f.equals(keep)) {
+                continue;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the BLOB to <var>file</var> like Protocol.getBLOB, from the
+     * cache when possible.</p>
+     *
+     * @param oid the object id.
+     * @param file destination file, overwritten.
+     * @return the http status code, 200 for a cache hit.
+     * @throws IOException
+     */
+    public int getBLOB(String oid, File file) throws IOException {
+        if (!enabled) {
+            return protocol.getBLOB(oid, file);
+        }
+        if (oid.equals("0")) {
+            return 404;
+        }
+        File cached = fetch(oid);
+        if (cached == null) {
+            return 404;
+        }
+        Files.copy(cached.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return 200;
+    }
+
+    /**
+     * <p>
+     * Returns the BLOB decoded by <var>decoder</var>, from the memory tier
+     * when possible. The decoded object is shared, so it must be immutable.</p>
+     *
+     * @param <T> the type of the decoded object.
+     * @param oid the object id.
+     * @param type the type of the decoded object.
+     * @param decoder decodes the raw bytes; may return null.
+     * @return the decoded object, or null if the BLOB could not be fetched or
+     * decoded.
+     * @throws IOException
+     */
+    public <T> T getDecoded(String oid, Class<T> type, Function<byte[], T> decoder) throws IOException {
+        return getDecoded(oid, null, type, decoder);
+    }
+
+    /**
+     * <p>
+     * Returns a variant of the BLOB made by <var>decoder</var>, such as an
+     * image scaled to a widget, from the memory tier when possible. Only the
+     * variant is kept in memory.</p>
+     *
+     * @param <T> the type of the decoded object.
+     * @param oid the object id.
+     * @param variant the name of the variant, or null for the BLOB itself.
+     * @param type the type of the decoded object.
+     * @param decoder decodes the raw bytes; may return null.
+     * @return the decoded object, or null if the BLOB could not be fetched or
+     * decoded.
+     * @throws IOException
+     */
+    public <T> T getDecoded(String oid, String variant, Class<T> type, Function<byte[], T> decoder) throws IOException {
+        if (oid.equals("0")) {
+            return null;
+        }
+        if (!enabled) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (protocol.getBLOB(oid, bytes) != 200 || bytes.size() == 0) {
+                return null;
+            }
+            return decoder.apply(bytes.toByteArray());
+        }
+        String key = memoryKey(oid, variant);
+        Object cachedValue = getMemory(key);
+        if (type.isInstance(cachedValue)) {
+            memoryHits.incrementAndGet();
+            return type.cast(cachedValue);
+        }
+        File cached = fetch(oid);
+        if (cached == null || cached.length() == 0) {
+            return null;
+        }
+        T value = decoder.apply(Files.readAllBytes(cached.toPath()));
+        if (value == null) {
+            // fetched again next time rather than kept broken
+            invalidate(oid);
+            return null;
+        }
+        putMemory(key, value);
+        return value;
+    }
+
+    /**
+     * <p>
+     * Forgets the BLOB of <var>oid</var>. The content stays on disk while
+     * other oids refer to it, until it is evicted.</p>
+     *
+     * @param oid the object id.
+     */
+    public synchronized void invalidate(String oid) {
+        index.remove(oid);
+        String prefix = oid + "@";
+        Iterator<Map.Entry<String, Decoded>> it = memory.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Decoded> e = it.next();
+            if (e.getKey().equals(oid) || e.getKey().startsWith(prefix)) {
+                memoryBytes -= e.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Forgets every BLOB and deletes the files.</p>
+     */
+    public synchronized void clear() {
+        index.clear();
+        memory.clear();
+        memoryBytes = 0;
+        TempFile.deleteAll(dir);
+    }
+
+    public String getStatistics() {
+        long m = memoryHits.get();
+        long d = diskHits.get();
+        long total = m + d + misses.get();
+        String rate = total == 0 ? "-" : String.format("%.1f%%", (m + d) * 100.0 / total);
+        return "memory_hits:" + m + " disk_hits:" + d + " misses:" + misses.get()
+                + " hit_rate:" + rate + " evictions:" + evictions.get()
+                + " memory:" + getMemoryBytes() / 1024 + "KB";
+    }
+
+    private synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+}
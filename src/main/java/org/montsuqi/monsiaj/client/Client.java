@@ -26,6 +26,7 @@ import org.montsuqi.monsiaj.util.Messages;
 import java.awt.event.ActionEvent;
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -35,14 +36,26 @@ import java.security.Principal;
 import java.security.Provider;
 import java.security.Security;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.net.ssl.*;
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
 import javax.swing.JOptionPane;
+import javax.swing.JRootPane;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -50,7 +63,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.montsuqi.monsiaj.monsia.Interface;
+import org.montsuqi.monsiaj.monsia.ScreenDefineCodec;
+import org.montsuqi.monsiaj.monsia.WidgetInfo;
 import org.montsuqi.monsiaj.util.GtkStockIcon;
+import org.montsuqi.monsiaj.util.PDFDocuments;
 import org.montsuqi.monsiaj.util.PopupNotify;
 import org.montsuqi.monsiaj.widgets.ExceptionDialog;
 
@@ -60,7 +76,7 @@ import org.montsuqi.monsiaj.widgets.ExceptionDialog;
  */
 public class Client {
 
-    private boolean isReceiving;
+    private volatile boolean isReceiving;
     private final Config conf;
     private static final Logger logger = LogManager.getLogger(Client.class);
     private Protocol protocol;
@@ -72,6 +88,10 @@ public class Client {
     private String focusedWindow;
     private String focusedWidget;
     private PushReceiver pushReceiver;
+    private PushDispatcher pushDispatcher;
+    private final PrintSpooler printSpooler;
+    private final ExecutorService rpcExecutor;
+    private ExecutorService parseExecutor;
     public static final int CERT_EXPIRE_CHECK_MONTHES = 2;
 
     public Client(Config conf) throws IOException {
@@ -84,6 +104,15 @@ public class Client {
         uiControl = new UIControl(this, conf.getStyleURL(n), delay);
         isReceiving = false;
         pushReceiver = null;
+        pushDispatcher = null;
+        printSpooler = new PrintSpooler();
+        bindPrintSpoolerDialog();
+        parseExecutor = null;
+        rpcExecutor = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "monsia-rpc");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     void connect() throws IOException, GeneralSecurityException, JSONException {
@@ -138,16 +167,14 @@ public class Client {
         logger.info("connected session_id:" + protocol.getSessionId());
         startReceiving();
         windowStack = protocol.getWindow();
-        updateScreen();
+        updateScreen(loadNewWindows(windowStack));
         stopReceiving();
 
         if (protocol.enablePushClient()) {
             try {
-                BlockingQueue q = new LinkedBlockingQueue();
-                pushReceiver = new PushReceiver(protocol, q);
-                PushHandler handler = new PushHandler(conf, protocol, q);
+                pushDispatcher = new PushDispatcher(new PushHandler(conf, protocol, printSpooler));
+                pushReceiver = new PushReceiver(protocol, pushDispatcher);
                 new Thread(pushReceiver).start();
-                new Thread(handler).start();
             } catch (URISyntaxException | KeyStoreException | FileNotFoundException | NoSuchAlgorithmException | CertificateException ex) {
                 logger.info(ex, ex);
             }
@@ -167,6 +194,10 @@ public class Client {
         try {
             protocol.endSession();
             pushReceiver.stop();
+            if (pushDispatcher != null) {
+                logger.info("push " + pushDispatcher.getStatistics());
+                pushDispatcher.stop();
+            }
             logger.info("disconnect session_id:" + protocol.getSessionId());
         } catch (IOException | JSONException e) {
             logger.warn(e, e);
@@ -189,7 +220,123 @@ public class Client {
         pingTimer.start();
     }
 
-    public void updateScreen() throws JSONException, IOException {
+    /**
+     * <p>
+     * Loads the widget trees of the window. The compiled screen definition in
+     * the local cache is used if there is one, otherwise the Glade XML is
+     * parsed and its compiled form is stored for the next time. Set
+     * monsia.disable_compiled_screen to always parse the XML.</p>
+     * <p>
+     * This does not touch Swing, so it may run on a parser thread.</p>
+     */
+    private List<WidgetInfo> loadWidgetInfo(String windowName) throws IOException, JSONException {
+        boolean useCompiled = System.getProperty("monsia.disable_compiled_screen") == null;
+        if (useCompiled) {
+            byte[] compiled = protocol.getCompiledScreenDefine(windowName);
+            if (compiled != null) {
+                try {
+                    return ScreenDefineCodec.decode(new ByteArrayInputStream(compiled));
+                } catch (IOException ex) {
+                    logger.warn("compiled screen definition of " + windowName + " is broken, parse xml: " + ex.getMessage());
+                }
+            }
+        }
+        String gladeData = protocol.getScreenDefine(windowName);
+        List<WidgetInfo> roots = Interface.parseWidgetInfo(new ByteArrayInputStream(gladeData.getBytes(StandardCharsets.UTF_8)));
+        if (useCompiled) {
+            // before building, since the builders rewrite some properties
+            protocol.putCompiledScreenDefine(windowName, ScreenDefineCodec.encode(roots));
+        }
+        return roots;
+    }
+
+    /**
+     * <p>
+     * Loads the widget trees of the windows. When there are more than one,
+     * they are fetched and parsed in parallel on the parser threads, and the
+     * caller waits for them; the widgets are built on the event dispatch
+     * thread afterwards. On the event dispatch thread itself(with
+     * monsia.send_event.sync) they are loaded one by one, so that it never
+     * waits on the parser threads.</p>
+     */
+    private Map<String, List<WidgetInfo>> loadWidgetInfos(List<String> windowNames) throws IOException, JSONException {
+        Map<String, List<WidgetInfo>> result = new HashMap<>();
+        if (windowNames.size() <= 1 || SwingUtilities.isEventDispatchThread()) {
+            for (String windowName : windowNames) {
+                result.put(windowName, loadWidgetInfo(windowName));
+            }
+            return result;
+        }
+        Map<String, Future<List<WidgetInfo>>> futures = new LinkedHashMap<>();
+        for (String windowName : windowNames) {
+            futures.put(windowName, getParseExecutor().submit(() -> loadWidgetInfo(windowName)));
+        }
+        for (Map.Entry<String, Future<List<WidgetInfo>>> e : futures.entrySet()) {
+            try {
+                result.put(e.getKey(), e.getValue().get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof JSONException) {
+                    throw (JSONException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+        return result;
+    }
+
+    private synchronized ExecutorService getParseExecutor() {
+        if (parseExecutor == null) {
+            int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            if (System.getProperty("monsia.parse_threads") != null) {
+                threads = Integer.parseInt(System.getProperty("monsia.parse_threads"));
+            }
+            parseExecutor = Executors.newFixedThreadPool(Math.max(1, threads), (Runnable r) -> {
+                Thread t = new Thread(r, "monsia-parse");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return parseExecutor;
+    }
+
+    /**
+     * <p>
+     * Fetches and parses the screen definitions of the windows in
+     * <var>stack</var> that have not been built yet. This does not touch
+     * Swing; run it before updateScreen, on the thread that did the RPC.</p>
+     *
+     * @param stack the window stack returned by the server.
+     * @return the widget trees by window name.
+     */
+    private Map<String, List<WidgetInfo>> loadNewWindows(JSONObject stack) throws JSONException, IOException {
+        JSONArray windows = stack.getJSONObject("window_data").getJSONArray("windows");
+        List<String> newWindows = new ArrayList<>();
+        for (int i = 0; i < windows.length(); i++) {
+            JSONObject w = windows.getJSONObject(i);
+            String windowName = w.getString("window");
+            if (uiControl.getNode(windowName) == null && !newWindows.contains(windowName)) {
+                newWindows.add(windowName);
+            }
+        }
+        return loadWidgetInfos(newWindows);
+    }
+
+    /**
+     * <p>
+     * Builds the new windows from <var>widgetInfos</var> and applies the
+     * window stack. Runs on the event dispatch thread.</p>
+     *
+     * @param widgetInfos the widget trees from loadNewWindows.
+     */
+    public void updateScreen(Map<String, List<WidgetInfo>> widgetInfos) throws JSONException, IOException {
         JSONObject windowData = windowStack.getJSONObject("window_data");
         focusedWindow = windowData.getString("focused_window");
         focusedWidget = windowData.getString("focused_widget");
@@ -197,6 +344,7 @@ public class Client {
 
         logger.info("----");
         logger.info("focused_window[" + focusedWindow + "]");
+        uiControl.resetWidgetCount();
 
         for (int i = 0; i < windows.length(); i++) {
             JSONObject w = windows.getJSONObject(i);
@@ -204,13 +352,7 @@ public class Client {
             String windowName = w.getString("window");
             Node node = uiControl.getNode(windowName);
             if (node == null) {
-                String gladeData = protocol.getScreenDefine(windowName);
-                try {
-                    node = new Node(Interface.parseInput(new ByteArrayInputStream(gladeData.getBytes("UTF-8")), uiControl), windowName);
-                } catch (UnsupportedEncodingException ex) {
-                    logger.info(ex, ex);
-                    return;
-                }
+                node = new Node(new Interface(widgetInfos.get(windowName), uiControl), windowName);
                 uiControl.putNode(windowName, node);
             }
             logger.info("show window[" + windowName + "] put_type[" + putType + "]");
@@ -250,54 +392,118 @@ public class Client {
         uiControl.setFocus(focusedWindow, focusedWidget);
     }
 
-    public void sendEvent(String windowName, String widgetName, String event) {
+    /**
+     * <p>
+     * Sends an event to the server and applies the returned screen.</p>
+     * <p>
+     * The event data is collected on the calling(event dispatch) thread, the
+     * RPC runs on the rpc thread and the new screen is applied on the event
+     * dispatch thread again, so the UI keeps painting during the round trip.
+     * <var>finish</var> is run on the event dispatch thread after the screen is
+     * updated(or immediately if there is nothing to send). Set
+     * monsia.send_event.sync to run the RPC on the calling thread.</p>
+     *
+     * @param windowName the window name.
+     * @param widgetName the widget name.
+     * @param event the event name.
+     * @param finish run when the event is done.
+     */
+    public void sendEvent(String windowName, String widgetName, String event, Runnable finish) {
         try {
             JSONObject tmpl;
             tmpl = (JSONObject) uiControl.getScreenTemplate(windowName);
-            if (tmpl != null) {
-
-                long t1 = System.currentTimeMillis();
-
-                Node node = uiControl.getNode(windowName);
-                if (node == null) {
-                    throw new IOException("invalid window:" + windowName);
-                }
-                Interface xml = node.getInterface();
-                JSONObject newScreenData = uiControl.updateScreenData(xml, xml.getWidgetByLongName(windowName), tmpl);
-                if (newScreenData == null) {
-                    newScreenData = new JSONObject();
-                }
-                uiControl.clearChangedWidget();
-                JSONObject eventData = new JSONObject();
-                eventData.put("window", windowName);
-                eventData.put("widget", widgetName);
-                eventData.put("event", event);
-                eventData.put("screen_data", newScreenData);
-                JSONObject params = new JSONObject();
-                params.put("event_data", eventData);
-
-                logger.info("window:" + windowName + " widget:" + widgetName + " event:" + event);
-
-                long t2 = System.currentTimeMillis();
+            if (tmpl == null) {
+                finish.run();
+                return;
+            }
 
-                windowStack = protocol.sendEvent(params);
-                int total_exec_time = protocol.getTotalExecTime();
-                int app_exec_time = protocol.getAppExecTime();
+            long t1 = System.currentTimeMillis();
 
-                long t3 = System.currentTimeMillis();
+            Node node = uiControl.getNode(windowName);
+            if (node == null) {
+                throw new IOException("invalid window:" + windowName);
+            }
+            Interface xml = node.getInterface();
+            JSONObject newScreenData = uiControl.updateScreenData(xml, xml.getWidgetByLongName(windowName), tmpl);
+            if (newScreenData == null) {
+                newScreenData = new JSONObject();
+            }
+            uiControl.clearChangedWidget();
+            JSONObject eventData = new JSONObject();
+            eventData.put("window", windowName);
+            eventData.put("widget", widgetName);
+            eventData.put("event", event);
+            eventData.put("screen_data", newScreenData);
+            JSONObject params = new JSONObject();
+            params.put("event_data", eventData);
 
-                updateScreen();
+            logger.info("window:" + windowName + " widget:" + widgetName + " event:" + event);
 
-                long t4 = System.currentTimeMillis();
+            long t2 = System.currentTimeMillis();
 
-                String msg = "[send_event] ";
-                msg += "total:" + (t4 - t1) + "ms ";
-                msg += "make_event_data:" + (t2 - t1) + "ms ";
-                msg += "rpc_total:" + (t3 - t2) + "ms ";
-                msg += "server_total:" + total_exec_time + "ms ";
-                msg += "server_app:" + app_exec_time + "ms ";
-                msg += "update_screen:" + (t4 - t3) + "ms";
-                logger.info(msg);
+            Runnable rpc = () -> {
+                boolean handedOff = false;
+                try {
+                    JSONObject result = protocol.sendEvent(params);
+                    int total_exec_time = protocol.getTotalExecTime();
+                    int app_exec_time = protocol.getAppExecTime();
+                    boolean reused = protocol.isLastConnectionReused();
+
+                    long t3 = System.currentTimeMillis();
+
+                    Map<String, List<WidgetInfo>> widgetInfos = loadNewWindows(result);
+
+                    long t3a = System.currentTimeMillis();
+
+                    runOnEDT(() -> {
+                        try {
+                            long t4 = System.currentTimeMillis();
+                            windowStack = result;
+                            updateScreen(widgetInfos);
+
+                            long t5 = System.currentTimeMillis();
+
+                            String msg = "[send_event] ";
+                            msg += "total:" + (t5 - t1) + "ms ";
+                            msg += "make_event_data:" + (t2 - t1) + "ms ";
+                            msg += "rpc_total:" + (t3 - t2) + "ms ";
+                            msg += "rpc_conn:" + (reused ? "reuse" : "new") + " ";
+                            msg += "server_total:" + total_exec_time + "ms ";
+                            msg += "server_app:" + app_exec_time + "ms ";
+                            msg += "load_windows:" + (t3a - t3) + "ms ";
+                            msg += "edt_wait:" + (t4 - t3a) + "ms ";
+                            msg += "update_screen:" + (t5 - t4) + "ms ";
+                            msg += "widgets_applied:" + uiControl.getAppliedWidgetCount() + " ";
+                            msg += "widgets_skipped:" + uiControl.getSkippedWidgetCount();
+                            logger.info(msg);
+                            if (System.getProperty("monsia.do_profile") != null) {
+                                logger.info("[connection] " + protocol.getConnectionStatistics());
+                                logger.info("[pdf] " + PDFDocuments.getStatistics());
+                            }
+                        } catch (JSONException | IOException ex) {
+                            ExceptionDialog.showExceptionDialog(ex);
+                            System.exit(1);
+                        } finally {
+                            finish.run();
+                        }
+                    });
+                    handedOff = true;
+                } catch (IOException | RuntimeException ex) {
+                    runOnEDT(() -> {
+                        ExceptionDialog.showExceptionDialog(ex);
+                        System.exit(1);
+                    });
+                } finally {
+                    // the executor would swallow anything else
+                    if (!handedOff) {
+                        runOnEDT(finish);
+                    }
+                }
+            };
+            if (System.getProperty("monsia.send_event.sync") != null) {
+                rpc.run();
+            } else {
+                rpcExecutor.execute(rpc);
             }
         } catch (JSONException | IOException ex) {
             ExceptionDialog.showExceptionDialog(ex);
@@ -305,8 +511,30 @@ public class Client {
         }
     }
 
-    private void listDownloads() throws IOException, JSONException {
-        JSONArray array = protocol.listDownloads();
+    /*
+     * ctrl shift F12 on the top window shows the jobs of the print spooler.
+     */
+    private void bindPrintSpoolerDialog() {
+        JRootPane root = uiControl.getTopWindow().getRootPane();
+        root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl shift F12"), "printSpooler");
+        root.getActionMap().put("printSpooler", new AbstractAction() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                new PrintSpoolerDialog(uiControl.getTopWindow(), printSpooler).setVisible(true);
+            }
+        });
+    }
+
+    private static void runOnEDT(Runnable r) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            r.run();
+        } else {
+            SwingUtilities.invokeLater(r);
+        }
+    }
+
+    private void listDownloads(JSONArray array) throws IOException, JSONException {
         logger.debug(array);
         for (int j = 0; j < array.length(); j++) {
             JSONObject item = array.getJSONObject(j);
@@ -317,7 +545,7 @@ public class Client {
             }
             if (type != null) {
                 if (type.equals("report")) {
-                    Download.printReport(conf, protocol, item);
+                    Download.printReport(conf, protocol, printSpooler, item);
                 } else {
                     Download.downloadFile(conf, protocol, item);
                 }
@@ -325,8 +553,7 @@ public class Client {
         }
     }
 
-    private void getMessage() throws IOException, JSONException {
-        JSONObject result = protocol.getMessage();
+    private void getMessage(JSONObject result) throws IOException, JSONException {
         if (result.has("abort")) {
             String abort = result.getString("abort");
             if (!abort.isEmpty()) {
@@ -357,10 +584,12 @@ public class Client {
             if (!isReceiving()) {
                 startReceiving();
                 logger.debug("sendPing");
-                if (!protocol.enablePushClient()) {
-                    listDownloads();
+                // one batch request instead of two round trips
+                Object[] results = protocol.getMessageAndListDownloads(!protocol.enablePushClient());
+                if (results[1] != null) {
+                    listDownloads((JSONArray) results[1]);
                 }
-                getMessage();
+                getMessage((JSONObject) results[0]);
                 stopReceiving();
             }
         } catch (IOException | JSONException ex) {
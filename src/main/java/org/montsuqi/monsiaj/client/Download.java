@@ -9,11 +9,8 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import javax.print.PrintService;
@@ -27,7 +24,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.montsuqi.monsiaj.util.GtkStockIcon;
 import org.montsuqi.monsiaj.util.Messages;
-import org.montsuqi.monsiaj.util.PDFPrint;
 import org.montsuqi.monsiaj.util.PopupNotify;
 import org.montsuqi.monsiaj.util.TempFile;
 import org.montsuqi.monsiaj.widgets.Button;
@@ -72,7 +68,19 @@ public class Download {
         closeButton.requestFocus();
     }
 
-    public static void printReport(Config conf, Protocol protocol, JSONObject item) {
+    /**
+     * <p>
+     * Prints a report pushed by the server. A report for a configured printer
+     * is handed to the spooler, which downloads and prints it in the
+     * background. Otherwise the report is downloaded here and shown in a
+     * preview dialog.</p>
+     *
+     * @param conf the configuration.
+     * @param protocol the protocol.
+     * @param spooler the print spooler.
+     * @param item the report.
+     */
+    public static void printReport(Config conf, Protocol protocol, PrintSpooler spooler, JSONObject item) {
         try {
             logger.info("printReport:" + item.toString());
             if (!item.has("object_id")) {
@@ -102,37 +110,19 @@ public class Download {
                 showdialog = true;
             }
 
+            int cp = 1;
+            PrintService ps = null;
+            if (!showdialog && printer != null) {
+                ps = conf.getPrintService(printer);
+                cp = conf.getCopies(printer);
+            }
+            if (ps != null) {
+                spooler.submit(title, printer, ps, cp, () -> downloadReport(protocol, oid));
+                return;
+            }
+
             try {
-                Date date = new Date();
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
-                String prefix = "report_" + sdf.format(date) + "_";
-                File file = TempFile.createTempFile(prefix, "pdf");
-                if (System.getProperty("monsia.save.print_data") != null) {
-                } else {
-                    file.deleteOnExit();
-                }
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
-                protocol.getBLOB(oid, out);
-                if (showdialog) {
-                    showReportDialog(title, file);
-                } else {
-                    int cp = 1;
-                    PrintService ps = null;
-                    if (printer != null) {
-                        ps = conf.getPrintService(printer);
-                        cp = conf.getCopies(printer);
-                    }
-                    if (ps != null) {
-                        PopupNotify.popup(Messages.getString("PrintReport.notify_summary"),
-                                Messages.getString("PrintReport.notify_print_start") + "\n\n"
-                                + Messages.getString("PrintReport.printer") + printer + "\n\n"
-                                + Messages.getString("PrintReport.title") + title,
-                                GtkStockIcon.get("gtk-print"), 0);
-                        PDFPrint.print(file,cp,ps);
-                    } else {
-                        showReportDialog(title, file);
-                    }
-                }
+                showReportDialog(title, downloadReport(protocol, oid));
             } catch (IOException ex) {
                 logger.catching(Level.WARN, ex);
                 PopupNotify.popup(Messages.getString("PrintReport.notify_summary"),
@@ -146,6 +136,21 @@ public class Download {
         }
     }    
     
+    private static File downloadReport(Protocol protocol, String oid) throws IOException {
+        Date date = new Date();
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+        String prefix = "report_" + sdf.format(date) + "_";
+        File file = TempFile.createTempFile(prefix, "pdf");
+        if (System.getProperty("monsia.save.print_data") != null) {
+        } else {
+            file.deleteOnExit();
+        }
+        protocol.getBLOB(oid, file, (long transferred, long total) -> {
+            logger.debug("printReport:" + oid + " " + transferred + "/" + total);
+        });
+        return file;
+    }
+
     public static void downloadFile(Config conf,Protocol protocol, JSONObject item)  {
         try {
             logger.info("downloadFile:" + item.toString());            
@@ -168,8 +173,9 @@ public class Download {
             try {
                 File temp = TempFile.createTempFile("downloadfile", filename);
                 temp.deleteOnExit();
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
-                protocol.getBLOB(oid, out);
+                protocol.getBLOB(oid, temp, (long transferred, long total) -> {
+                    logger.debug("downloadFile:" + oid + " " + transferred + "/" + total);
+                });
                 PandaDownload pd = new PandaDownload();
                 pd.showDialog(filename, desc, temp);
             } catch (IOException ex) {
@@ -0,0 +1,326 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Keeps HTTP connections to the server warm between requests.</p>
+ * <p>
+ * The JDK caches idle keep-alive sockets per host, port and socket factory as
+ * long as the response body is read to the end and the connection is not
+ * disconnected. This class hands out connections for each endpoint(authURI,
+ * rpcURI, restURIRoot), releases them back to that cache, evicts endpoints
+ * that have been idle too long and drops the cached sockets of an endpoint
+ * whose request failed. For https endpoints it counts the physical connections
+ * so that the reuse ratio can be logged.</p>
+ * <p>
+ * An https endpoint drops its idle sockets by switching to a new socket
+ * factory. The cache of plain http is keyed by host and port for the whole
+ * process and cannot be told apart per endpoint, so the idle sockets of an
+ * http endpoint are left to the JDK: it closes them after the Keep-Alive
+ * timeout of the response and sends a request again on a new socket when the
+ * reused one turns out to be closed by the server.</p>
+ */
+class HttpConnectionPool {
+
+    static final Logger logger = LogManager.getLogger(HttpConnectionPool.class);
+    static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+    private final Map<String, Endpoint> endpoints;
+    private final long idleTimeout;
+    private SSLSocketFactory sslSocketFactory;
+
+    HttpConnectionPool() {
+        endpoints = new TreeMap<>();
+        long timeout = DEFAULT_IDLE_TIMEOUT;
+        if (System.getProperty("monsia.http.idle_timeout") != null) {
+            timeout = Long.parseLong(System.getProperty("monsia.http.idle_timeout")) * 1000;
+        }
+        idleTimeout = timeout;
+    }
+
+    synchronized void setSSLSocketFactory(SSLSocketFactory factory) {
+        sslSocketFactory = factory;
+        for (Endpoint ep : endpoints.values()) {
+            ep.renew();
+        }
+    }
+
+    private static String endpointKey(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    private synchronized Endpoint getEndpoint(URL url) {
+        String key = endpointKey(url);
+        Endpoint ep = endpoints.get(key);
+        if (ep == null) {
+            ep = new Endpoint(key, url.getProtocol().equals("https"));
+            endpoints.put(key, ep);
+        }
+        return ep;
+    }
+
+    /**
+     * <p>
+     * Opens a connection to <var>url</var> which may reuse an idle socket of
+     * the same endpoint.</p>
+     *
+     * @param url the request url.
+     * @return a pooled connection. Pass it to release or discard when done.
+     * @throws IOException
+     */
+    PooledConnection open(URL url) throws IOException {
+        Endpoint ep = getEndpoint(url);
+        ep.acquire();
+        HttpURLConnection con = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY);
+        con.setRequestProperty("Connection", "keep-alive");
+        return new PooledConnection(ep, con, ep.prepare(con));
+    }
+
+    /**
+     * <p>
+     * Returns the socket of <var>pc</var> to the keep-alive cache.</p>
+     * <p>
+     * Whatever is left of the response body is read and the stream is closed.
+     * The connection must not be used after this call.</p>
+     *
+     * @param pc the connection.
+     */
+    void release(PooledConnection pc) {
+        HttpURLConnection con = pc.getConnection();
+        try {
+            InputStream in;
+            if (con.getResponseCode() >= 400) {
+                in = con.getErrorStream();
+            } else {
+                in = con.getInputStream();
+            }
+            if (in != null) {
+                byte[] buf = new byte[4096];
+                while (in.read(buf) != -1) {
+                    // drain
+                }
+                in.close();
+            }
+            pc.endpoint.released(pc);
+        } catch (IOException ex) {
+            logger.debug(ex, ex);
+            discard(pc);
+        }
+    }
+
+    /**
+     * <p>
+     * Closes the socket of <var>pc</var> and drops the other idle sockets of
+     * the endpoint. Used when a request failed, since the remaining sockets of
+     * that endpoint are likely to be broken too.</p>
+     *
+     * @param pc the connection.
+     */
+    void discard(PooledConnection pc) {
+        pc.getConnection().disconnect();
+        pc.endpoint.failed();
+    }
+
+    synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint ep : endpoints.values()) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(ep.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * <p>
+     * A connection handed out by the pool.</p>
+     */
+    class PooledConnection {
+
+        private final Endpoint endpoint;
+        private final HttpURLConnection connection;
+        private final long connectsAtOpen;
+
+        private PooledConnection(Endpoint endpoint, HttpURLConnection connection, long connectsAtOpen) {
+            this.endpoint = endpoint;
+            this.connection = connection;
+            this.connectsAtOpen = connectsAtOpen;
+        }
+
+        HttpURLConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * <p>
+         * Tests if the request was sent over an already established socket.
+         * Always false for plain http endpoints because the JDK does not
+         * expose their socket creation.</p>
+         *
+         * @return true if no new socket was opened for this connection.
+         */
+        boolean isReused() {
+            return endpoint.secure && endpoint.connects.get() == connectsAtOpen;
+        }
+    }
+
+    private class Endpoint {
+
+        private final String key;
+        private final boolean secure;
+        private final AtomicLong requests;
+        private final AtomicLong connects;
+        private final AtomicLong reused;
+        private final AtomicLong evictions;
+        private final AtomicLong failures;
+        private CountingSSLSocketFactory factory;
+        private long lastUsed;
+
+        Endpoint(String key, boolean secure) {
+            this.key = key;
+            this.secure = secure;
+            requests = new AtomicLong();
+            connects = new AtomicLong();
+            reused = new AtomicLong();
+            evictions = new AtomicLong();
+            failures = new AtomicLong();
+            lastUsed = System.currentTimeMillis();
+            factory = null;
+        }
+
+        /*
+         * The JDK keep-alive cache is keyed by the socket factory instance,
+         * so installing a fresh factory makes every idle socket of this
+         * endpoint unreachable. They are closed by the cache itself.
+         */
+        synchronized void renew() {
+            if (secure) {
+                SSLSocketFactory base = sslSocketFactory;
+                if (base == null) {
+                    base = HttpsURLConnection.getDefaultSSLSocketFactory();
+                }
+                factory = new CountingSSLSocketFactory(base, connects);
+            }
+        }
+
+        synchronized void acquire() {
+            long now = System.currentTimeMillis();
+            if (factory == null && secure) {
+                renew();
+            } else if (now - lastUsed > idleTimeout) {
+                evictions.incrementAndGet();
+                logger.debug("evict idle connections " + key);
+                renew();
+            }
+            lastUsed = now;
+            requests.incrementAndGet();
+        }
+
+        synchronized long prepare(HttpURLConnection con) {
+            if (secure) {
+                ((HttpsURLConnection) con).setSSLSocketFactory(factory);
+            }
+            return connects.get();
+        }
+
+        synchronized void released(PooledConnection pc) {
+            lastUsed = System.currentTimeMillis();
+            if (pc.isReused()) {
+                reused.incrementAndGet();
+            }
+        }
+
+        synchronized void failed() {
+            failures.incrementAndGet();
+            renew();
+        }
+
+        @Override
+        public synchronized String toString() {
+            String s = "[" + key + " requests:" + requests.get();
+            if (secure) {
+                s += " connects:" + connects.get() + " reused:" + reused.get();
+            }
+            s += " evictions:" + evictions.get() + " failures:" + failures.get();
+            s += "]";
+            return s;
+        }
+    }
+
+    private static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+        private final AtomicLong counter;
+
+        CountingSSLSocketFactory(SSLSocketFactory delegate, AtomicLong counter) {
+            this.delegate = delegate;
+            this.counter = counter;
+        }
+
+        private Socket count(Socket s) {
+            counter.incrementAndGet();
+            return s;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return count(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
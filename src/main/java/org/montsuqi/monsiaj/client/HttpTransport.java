@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>
+ * The HTTP client used by Protocol and OpenIdConnect.</p>
+ * <p>
+ * An Exchange is one request and its response. The request is sent when its
+ * response is first asked for. Redirects are not followed and cookies are not
+ * kept. When the caller is done with the exchange, it must call release
+ * (keep the connection) or discard (drop it).</p>
+ * <p>
+ * The implementation is chosen by monsia.http.transport:</p>
+ * <ul>
+ * <li>jdk(default) HttpURLConnection through HttpConnectionPool</li>
+ * <li>jetty Jetty HttpClient, see JettyHttpTransport</li>
+ * </ul>
+ */
+public interface HttpTransport {
+
+    /**
+     * <p>
+     * Starts an exchange.</p>
+     *
+     * @param method the request method.
+     * @param url the request url.
+     * @return the exchange.
+     * @throws IOException
+     */
+    Exchange open(String method, URL url) throws IOException;
+
+    /**
+     * <p>
+     * Sets the factory for https connections. Idle connections made with the
+     * previous factory are not reused.</p>
+     *
+     * @param factory the factory, or null for the default.
+     */
+    void setSSLSocketFactory(SSLSocketFactory factory);
+
+    String getStatistics();
+
+    /**
+     * <p>
+     * Closes the idle connections and releases the resources of the
+     * transport.</p>
+     */
+    void close();
+
+    interface Exchange {
+
+        void setRequestHeader(String name, String value);
+
+        /**
+         * <p>
+         * Answers basic authentication for this request.</p>
+         *
+         * @param user the user.
+         * @param password the password.
+         */
+        void setCredentials(String user, String password);
+
+        void setRequestBody(byte[] body);
+
+        /**
+         * <p>
+         * Sends the request if not yet sent and returns the status code.</p>
+         *
+         * @return the http status code.
+         * @throws IOException
+         */
+        int getResponseCode() throws IOException;
+
+        String getResponseMessage() throws IOException;
+
+        String getHeader(String name) throws IOException;
+
+        long getContentLength() throws IOException;
+
+        /**
+         * <p>
+         * Returns the response body of a successful request.</p>
+         *
+         * @return the body.
+         * @throws IOException if the status code is 400 or more.
+         */
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * <p>
+         * Returns the response body of a failed request.</p>
+         *
+         * @return the body, or null if the request did not fail.
+         * @throws IOException
+         */
+        InputStream getErrorStream() throws IOException;
+
+        /**
+         * <p>
+         * Tests if the request was sent over an already established
+         * connection.</p>
+         *
+         * @return true if no new connection was opened.
+         */
+        boolean isReused();
+
+        /**
+         * <p>
+         * Reads the rest of the response and keeps the connection for the next
+         * exchange.</p>
+         */
+        void release();
+
+        /**
+         * <p>
+         * Drops the connection. Used when the request failed.</p>
+         */
+        void discard();
+    }
+
+    static HttpTransport create() {
+        return create(System.getProperty("monsia.http.transport", "jdk"));
+    }
+
+    static HttpTransport create(String name) {
+        switch (name) {
+            case "jdk":
+                return new JdkHttpTransport();
+            case "jetty":
+                return new JettyHttpTransport();
+            default:
+                throw new IllegalArgumentException("unknown http transport:" + name);
+        }
+    }
+}
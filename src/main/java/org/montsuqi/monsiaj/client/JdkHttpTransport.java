@@ -0,0 +1,166 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.PasswordAuthentication;
+import java.net.URL;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>
+ * HttpTransport on HttpURLConnection. Connections are kept warm by
+ * HttpConnectionPool.</p>
+ */
+class JdkHttpTransport implements HttpTransport {
+
+    private final HttpConnectionPool pool;
+
+    JdkHttpTransport() {
+        pool = new HttpConnectionPool();
+    }
+
+    @Override
+    public Exchange open(String method, URL url) throws IOException {
+        HttpConnectionPool.PooledConnection pc = pool.open(url);
+        HttpURLConnection con = pc.getConnection();
+        con.setInstanceFollowRedirects(false);
+        con.setRequestMethod(method);
+        return new JdkExchange(pc);
+    }
+
+    @Override
+    public void setSSLSocketFactory(SSLSocketFactory factory) {
+        pool.setSSLSocketFactory(factory);
+    }
+
+    @Override
+    public String getStatistics() {
+        return pool.getStatistics();
+    }
+
+    @Override
+    public void close() {
+        // the idle sockets belong to the JDK keep-alive cache
+    }
+
+    private class JdkExchange implements Exchange {
+
+        private final HttpConnectionPool.PooledConnection pc;
+        private final HttpURLConnection con;
+        private byte[] body;
+        private String user;
+        private String password;
+        private boolean sent;
+
+        JdkExchange(HttpConnectionPool.PooledConnection pc) {
+            this.pc = pc;
+            this.con = pc.getConnection();
+            body = null;
+            user = null;
+            password = null;
+            sent = false;
+        }
+
+        @Override
+        public void setRequestHeader(String name, String value) {
+            con.setRequestProperty(name, value);
+        }
+
+        @Override
+        public void setCredentials(String user, String password) {
+            this.user = user;
+            this.password = password;
+        }
+
+        @Override
+        public void setRequestBody(byte[] body) {
+            this.body = body;
+        }
+
+        private void send() throws IOException {
+            if (sent) {
+                return;
+            }
+            sent = true;
+            // the JDK asks the default Authenticator on a 401 challenge
+            if (user != null) {
+                final String u = user;
+                final char[] p = password.toCharArray();
+                Authenticator.setDefault(new Authenticator() {
+                    @Override
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        return new PasswordAuthentication(u, p);
+                    }
+                });
+            } else {
+                Authenticator.setDefault(null);
+            }
+            if (body != null) {
+                con.setDoOutput(true);
+                try (OutputStream os = con.getOutputStream()) {
+                    os.write(body);
+                    os.flush();
+                }
+            }
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            send();
+            return con.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            send();
+            return con.getResponseMessage();
+        }
+
+        @Override
+        public String getHeader(String name) throws IOException {
+            send();
+            return con.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() throws IOException {
+            send();
+            return con.getContentLengthLong();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            send();
+            return con.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() throws IOException {
+            send();
+            return con.getErrorStream();
+        }
+
+        @Override
+        public boolean isReused() {
+            return pc.isReused();
+        }
+
+        @Override
+        public void release() {
+            pool.release(pc);
+        }
+
+        @Override
+        public void discard() {
+            pool.discard(pc);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+
+/**
+ * <p>
+ * HttpTransport on Jetty HttpClient.</p>
+ * <p>
+ * Requests are sent asynchronously and the caller blocks only for the
+ * response head; the body is streamed. Jetty pools the connections per
+ * destination. Content decoding and cookies are turned off so the exchanges
+ * look the same as the JDK ones.</p>
+ * <p>
+ * Only HTTP/1.1 ships: the build has neither the http2 client transport nor
+ * ALPN. monsia.http.jetty.http2 loads HttpClientTransportOverHTTP2 by name
+ * for a deployment that adds http2-http-client-transport(and, for h2 over
+ * TLS, ALPN) to the class path, and falls back to HTTP/1.1 without it.</p>
+ * <p>
+ * The wait for a response head is bounded by monsia.http.timeout(seconds,
+ * default 300) and idle connections are closed after monsia.http.idle_timeout
+ * (seconds, default 60).</p>
+ */
+class JettyHttpTransport implements HttpTransport {
+
+    static final Logger logger = LogManager.getLogger(JettyHttpTransport.class);
+    static final long DEFAULT_TIMEOUT = 300 * 1000;
+
+    private final long timeout;
+    private final long idleTimeout;
+    private final AtomicLong requests;
+    private final AtomicLong connects;
+    private final AtomicLong failures;
+    private HttpClient client;
+
+    JettyHttpTransport() {
+        long t = DEFAULT_TIMEOUT;
+        if (System.getProperty("monsia.http.timeout") != null) {
+            t = Long.parseLong(System.getProperty("monsia.http.timeout")) * 1000;
+        }
+        timeout = t;
+        t = HttpConnectionPool.DEFAULT_IDLE_TIMEOUT;
+        if (System.getProperty("monsia.http.idle_timeout") != null) {
+            t = Long.parseLong(System.getProperty("monsia.http.idle_timeout")) * 1000;
+        }
+        idleTimeout = t;
+        requests = new AtomicLong();
+        connects = new AtomicLong();
+        failures = new AtomicLong();
+        client = null;
+    }
+
+    private static HttpClientTransport newClientTransport() {
+        if (System.getProperty("monsia.http.jetty.http2") != null) {
+            try {
+                Object http2Client = Class.forName("org.eclipse.jetty.http2.client.HTTP2Client").getDeclaredConstructor().newInstance();
+                Class<?> c = Class.forName("org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2");
+                return (HttpClientTransport) c.getConstructor(http2Client.getClass()).newInstance(http2Client);
+            } catch (ReflectiveOperationException ex) {
+                logger.warn("http2 client is not available, use http/1.1: " + ex);
+            }
+        }
+        return new HttpClientTransportOverHTTP();
+    }
+
+    private synchronized HttpClient getClient() throws IOException {
+        if (client != null) {
+            return client;
+        }
+        SslContextFactory ssl = new SslContextFactory();
+        try {
+            // SSLSocketFactoryHelper installs its context as the default
+            ssl.setSslContext(SSLContext.getDefault());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        // Jetty checks no host name by default, unlike HttpsURLConnection
+        ssl.setEndpointIdentificationAlgorithm("HTTPS");
+        HttpClient c = new HttpClient(newClientTransport(), ssl);
+        // like the JDK stack, idle connections do not keep the VM alive
+        QueuedThreadPool threads = new QueuedThreadPool();
+        threads.setName("monsia-http");
+        threads.setDaemon(true);
+        c.setExecutor(threads);
+        c.setScheduler(new ScheduledExecutorScheduler("monsia-http-scheduler", true));
+        c.setFollowRedirects(false);
+        c.setIdleTimeout(idleTimeout);
+        c.setCookieStore(new HttpCookieStore.Empty());
+        // Protocol decodes the body itself and counts the wire bytes
+        c.getContentDecoderFactories().clear();
+        c.addBean(new Connection.Listener() {
+            @Override
+            public void onOpened(Connection connection) {
+                connects.incrementAndGet();
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+            }
+        });
+        try {
+            c.start();
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        client = c;
+        return client;
+    }
+
+    @Override
+    public Exchange open(String method, URL url) throws IOException {
+        Request request = getClient().newRequest(url.toString()).method(method);
+        requests.incrementAndGet();
+        return new JettyExchange(request);
+    }
+
+    @Override
+    public synchronized void setSSLSocketFactory(SSLSocketFactory factory) {
+        // the next request starts a client with the current default context
+        close();
+    }
+
+    @Override
+    public String getStatistics() {
+        return "[jetty requests:" + requests.get() + " connects:" + connects.get()
+                + " failures:" + failures.get() + "]";
+    }
+
+    @Override
+    public synchronized void close() {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.stop();
+        } catch (Exception ex) {
+            logger.info(ex, ex);
+        }
+        client = null;
+    }
+
+    private class JettyExchange implements Exchange {
+
+        private final Request request;
+        private InputStreamResponseListener listener;
+        private Response response;
+        private InputStream body;
+        private boolean reused;
+
+        JettyExchange(Request request) {
+            this.request = request;
+            listener = null;
+            response = null;
+            body = null;
+            reused = false;
+        }
+
+        @Override
+        public void setRequestHeader(String name, String value) {
+            // replace like HttpURLConnection.setRequestProperty, this also
+            // drops the default User-Agent of Jetty
+            request.header(name, null);
+            request.header(name, value);
+        }
+
+        @Override
+        public void setCredentials(String user, String password) {
+            String token = Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+            setRequestHeader(HttpHeader.AUTHORIZATION.asString(), "Basic " + token);
+        }
+
+        @Override
+        public void setRequestBody(byte[] body) {
+            request.content(new BytesContentProvider(body));
+        }
+
+        private Response send() throws IOException {
+            if (response != null) {
+                return response;
+            }
+            if (listener != null) {
+                throw new IOException("request failed");
+            }
+            listener = new InputStreamResponseListener();
+            long connectsAtSend = connects.get();
+            request.send(listener);
+            try {
+                response = listener.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                request.abort(ex);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (TimeoutException ex) {
+                request.abort(ex);
+                throw new SocketTimeoutException("http response timeout " + request.getURI());
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+            reused = connects.get() == connectsAtSend;
+            return response;
+        }
+
+        private InputStream getBody() throws IOException {
+            send();
+            if (body == null) {
+                body = listener.getInputStream();
+            }
+            return body;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return send().getStatus();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return send().getReason();
+        }
+
+        @Override
+        public String getHeader(String name) throws IOException {
+            return send().getHeaders().get(name);
+        }
+
+        @Override
+        public long getContentLength() throws IOException {
+            return send().getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString());
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            int status = getResponseCode();
+            if (status >= 400) {
+                throw new IOException("Server returned HTTP response code: " + status + " for URL: " + request.getURI());
+            }
+            return getBody();
+        }
+
+        @Override
+        public InputStream getErrorStream() throws IOException {
+            if (getResponseCode() < 400) {
+                return null;
+            }
+            return getBody();
+        }
+
+        @Override
+        public boolean isReused() {
+            return reused;
+        }
+
+        @Override
+        public void release() {
+            try {
+                InputStream in = getBody();
+                byte[] buf = new byte[4096];
+                while (in.read(buf) != -1) {
+                    // drain
+                }
+                in.close();
+            } catch (IOException ex) {
+                logger.debug(ex, ex);
+                discard();
+            }
+        }
+
+        @Override
+        public void discard() {
+            failures.incrementAndGet();
+            IOException cause = new IOException("discarded");
+            request.abort(cause);
+            if (response != null) {
+                response.abort(cause);
+            }
+        }
+    }
+}
@@ -5,13 +5,11 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.Authenticator;
-import java.net.HttpURLConnection;
 import java.net.PasswordAuthentication;
 import java.net.URL;
-import java.net.Proxy;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Map;
@@ -24,6 +22,7 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.montsuqi.monsiaj.util.Transfer;
 
 class LoginFailureException extends RuntimeException {
 }
@@ -62,6 +61,7 @@ public class OpenIdConnect {
 
     private String rp_cookie = "";
     private String rp_domain = "";
+    private HttpTransport transport;
 
     public OpenIdConnect(String sso_user, String sso_password, String sso_sp_uri) throws IOException {
         this.sso_sp_uri = sso_sp_uri;
@@ -71,14 +71,19 @@ public class OpenIdConnect {
 
     public String connect() throws IOException, LoginFailureException {
       logger.info("try OpenId connect...");
-      // バックエンドサーバへのログイン要求
-      doAuthenticationRequestToRP();
-      // 認証サーバへのログイン要求
-      doAuthenticationRequestToIP();
-      // 認証サーバへのログイン
-      doLoginToIP();
-      // バックエンドサーバへのsession id発行要求
-      doLoginToRP();
+      transport = HttpTransport.create();
+      try {
+          // バックエンドサーバへのログイン要求
+          doAuthenticationRequestToRP();
+          // 認証サーバへのログイン要求
+          doAuthenticationRequestToIP();
+          // 認証サーバへのログイン
+          doLoginToIP();
+          // バックエンドサーバへのsession id発行要求
+          doLoginToRP();
+      } finally {
+          transport.close();
+      }
 
       return this.rp_cookie;
     }
@@ -135,26 +140,17 @@ public class OpenIdConnect {
 
     private JSONObject request(String uri, String method, JSONObject params) throws IOException {
       URL url = new URL(uri);
-      HttpURLConnection con = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY);
-      con.setInstanceFollowRedirects(false);
-      con.setRequestProperty("Accept", "application/json");
+      HttpTransport.Exchange con = transport.open(method, url);
+      con.setRequestHeader("Accept", "application/json");
 
       if (this.rp_domain.equals(url.getHost())) {
-        con.setRequestProperty("Cookie", this.rp_cookie);
+        con.setRequestHeader("Cookie", this.rp_cookie);
       }
-      if (method == "GET") {
-          con.setDoOutput(false);
-          con.setRequestMethod("GET");
-      } else {
-          con.setDoOutput(true);
-          con.setRequestMethod("POST");
-          con.setRequestProperty("Content-Type", "application/json");
-          OutputStreamWriter osw = new OutputStreamWriter(con.getOutputStream(), "UTF-8");
-          osw.write(params.toString());
-          osw.close();
+      if (!method.equals("GET")) {
+          con.setRequestHeader("Content-Type", "application/json");
+          con.setRequestBody(params.toString().getBytes("UTF-8"));
       }
 
-      con.connect();
       int resCode = con.getResponseCode();
       switch (resCode) {
           case 200:
@@ -164,37 +160,31 @@ public class OpenIdConnect {
           default:
               String message = con.getResponseMessage();
               logger.info("http error: " + resCode + " " + message);
+              con.discard();
               throw new HttpResponseException(resCode);
       }
 
       JSONObject headerObj = new JSONObject();
 
       JSONObject result;
-      if (con.getHeaderField("Content-Type").indexOf("application/json") >= 0) {
+      if (con.getHeader("Content-Type").indexOf("application/json") >= 0) {
         ByteArrayOutputStream body = getHTTPBody(con);
         result = new JSONObject(body.toString("UTF-8"));
       } else {
         result = new JSONObject();
       }
-      headerObj.put("Set-Cookie", con.getHeaderField("Set-Cookie"));
-      headerObj.put("Location", con.getHeaderField("Location"));
+      headerObj.put("Set-Cookie", con.getHeader("Set-Cookie"));
+      headerObj.put("Location", con.getHeader("Location"));
       result.put("header", headerObj);
 
-      con.disconnect();
+      con.release();
 
       return result;
     }
 
-    private ByteArrayOutputStream getHTTPBody(HttpURLConnection con) {
-        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream()) {
-            try (BufferedOutputStream bos = new BufferedOutputStream(bytes)) {
-                BufferedInputStream bis = new BufferedInputStream(con.getInputStream());
-                int length;
-                while ((length = bis.read()) != -1) {
-                    bos.write(length);
-                }
-            }
-            return bytes;
+    private ByteArrayOutputStream getHTTPBody(HttpTransport.Exchange con) {
+        try (InputStream in = con.getInputStream()) {
+            return Transfer.readAll(in, con.getContentLength());
         } catch (IOException ex) {
             return new ByteArrayOutputStream();
         }
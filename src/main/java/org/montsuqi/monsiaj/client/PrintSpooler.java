@@ -0,0 +1,494 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.awt.print.PrinterException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.print.PrintService;
+import javax.print.attribute.standard.MediaSizeName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.montsuqi.monsiaj.util.GtkStockIcon;
+import org.montsuqi.monsiaj.util.Messages;
+import org.montsuqi.monsiaj.util.PDFDocuments;
+import org.montsuqi.monsiaj.util.PDFPrint;
+import org.montsuqi.monsiaj.util.PopupNotify;
+import org.montsuqi.monsiaj.util.TempFile;
+
+/**
+ * <p>
+ * Prints reports in the background so that a slow printer does not hold up
+ * the push handler.</p>
+ * <p>
+ * Every PrintService has its own worker thread, so jobs for one printer are
+ * printed in the order they were submitted while other printers go on. The
+ * number of jobs printing at the same time is bounded by
+ * monsia.print_spooler.concurrency(default 2). A job that fails with a
+ * PrinterException is tried again up to monsia.print_spooler.retry times
+ * (default 3), waiting monsia.print_spooler.retry_interval milliseconds
+ * (default 5000) times the attempt in between. The last jobs are kept for
+ * the status dialog, see PrintSpoolerDialog.</p>
+ * <p>
+ * With monsia.print_spooler.coalesce set to a number of milliseconds, a
+ * worker waits that long for the next job after each one and merges
+ * consecutive jobs with the same copies and paper size into one PDF, up to
+ * monsia.print_spooler.coalesce_max(default 50) reports. The merged file is
+ * printed as one job; every report in it still has its own state and its own
+ * failure notice.</p>
+ */
+public class PrintSpooler {
+
+    private static final Logger logger = LogManager.getLogger(PrintSpooler.class);
+    private static final int DEFAULT_CONCURRENCY = 2;
+    private static final int DEFAULT_RETRY = 3;
+    private static final long DEFAULT_RETRY_INTERVAL = 5000;
+    private static final int HISTORY = 100;
+    private static final int DEFAULT_COALESCE_MAX = 50;
+
+    public enum State {
+        QUEUED, PRINTING, DONE, FAILED
+    }
+
+    /**
+     * <p>
+     * Fetches the file to print, typically by downloading a BLOB.</p>
+     */
+    public interface Source {
+
+        File fetch() throws IOException;
+    }
+
+    public interface Listener {
+
+        /**
+         * <p>
+         * Called on the worker thread whenever a job changes its state.</p>
+         *
+         * @param job the job.
+         */
+        void jobChanged(Job job);
+    }
+
+    public static class Job {
+
+        private final int id;
+        private final String title;
+        private final String printer;
+        private final PrintService printService;
+        private final int copies;
+        private final Source source;
+        private final long submitted;
+        private volatile State state;
+        private volatile int attempts;
+        private volatile String error;
+        private volatile long finished;
+        private File file;
+        private MediaSizeName media;
+
+        Job(int id, String title, String printer, PrintService printService, int copies, Source source) {
+            this.id = id;
+            this.title = title;
+            this.printer = printer;
+            this.printService = printService;
+            this.copies = copies;
+            this.source = source;
+            this.submitted = System.currentTimeMillis();
+            this.state = State.QUEUED;
+            this.attempts = 0;
+            this.error = null;
+            this.finished = 0;
+            this.file = null;
+            this.media = null;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getPrinter() {
+            return printer;
+        }
+
+        public int getCopies() {
+            return copies;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getFinished() {
+            return finished;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final Map<String, Worker> workers;
+    private final LinkedList<Job> jobs;
+    private final List<Listener> listeners;
+    private final Semaphore permits;
+    private final int retry;
+    private final long retryInterval;
+    private final long coalesce;
+    private final int coalesceMax;
+    private final AtomicInteger lastId;
+
+    public PrintSpooler() {
+        workers = new HashMap<>();
+        jobs = new LinkedList<>();
+        listeners = new CopyOnWriteArrayList<>();
+        lastId = new AtomicInteger();
+        int concurrency = DEFAULT_CONCURRENCY;
+        if (System.getProperty("monsia.print_spooler.concurrency") != null) {
+            concurrency = Integer.parseInt(System.getProperty("monsia.print_spooler.concurrency"));
+        }
+        permits = new Semaphore(Math.max(1, concurrency), true);
+        int r = DEFAULT_RETRY;
+        if (System.getProperty("monsia.print_spooler.retry") != null) {
+            r = Integer.parseInt(System.getProperty("monsia.print_spooler.retry"));
+        }
+        retry = Math.max(0, r);
+        long interval = DEFAULT_RETRY_INTERVAL;
+        if (System.getProperty("monsia.print_spooler.retry_interval") != null) {
+            interval = Long.parseLong(System.getProperty("monsia.print_spooler.retry_interval"));
+        }
+        retryInterval = interval;
+        long window = 0;
+        if (System.getProperty("monsia.print_spooler.coalesce") != null) {
+            window = Long.parseLong(System.getProperty("monsia.print_spooler.coalesce"));
+        }
+        coalesce = window;
+        int max = DEFAULT_COALESCE_MAX;
+        if (System.getProperty("monsia.print_spooler.coalesce_max") != null) {
+            max = Integer.parseInt(System.getProperty("monsia.print_spooler.coalesce_max"));
+        }
+        coalesceMax = Math.max(1, max);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * <p>
+     * Queues a job on the worker of its printer and returns at once.</p>
+     *
+     * @param title the title of the report.
+     * @param printer the printer name of the configuration.
+     * @param ps the printer.
+     * @param copies the number of copies.
+     * @param source fetches the PDF file on the worker thread.
+     * @return the job.
+     */
+    public Job submit(String title, String printer, PrintService ps, int copies, Source source) {
+        Job job = new Job(lastId.incrementAndGet(), title, printer, ps, copies, source);
+        Worker worker;
+        synchronized (this) {
+            jobs.addLast(job);
+            // drop the oldest finished jobs
+            while (jobs.size() > HISTORY) {
+                Job first = jobs.getFirst();
+                if (first.state != State.DONE && first.state != State.FAILED) {
+                    break;
+                }
+                jobs.removeFirst();
+            }
+            worker = workers.get(ps.getName());
+            if (worker == null) {
+                worker = new Worker(ps.getName());
+                workers.put(ps.getName(), worker);
+            }
+        }
+        fire(job);
+        worker.queue.offer(job);
+        return job;
+    }
+
+    /**
+     * <p>
+     * Returns a snapshot of the queued and the last finished jobs, the oldest
+     * first.</p>
+     *
+     * @return the jobs.
+     */
+    public synchronized List<Job> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    public synchronized String getStatistics() {
+        int[] count = new int[State.values().length];
+        for (Job job : jobs) {
+            count[job.state.ordinal()]++;
+        }
+        return "queued:" + count[State.QUEUED.ordinal()]
+                + " printing:" + count[State.PRINTING.ordinal()]
+                + " done:" + count[State.DONE.ordinal()]
+                + " failed:" + count[State.FAILED.ordinal()];
+    }
+
+    private void fire(Job job) {
+        for (Listener listener : listeners) {
+            try {
+                listener.jobChanged(job);
+            } catch (RuntimeException ex) {
+                logger.warn(ex, ex);
+            }
+        }
+    }
+
+    /*
+     * A thread per printer that takes the jobs in order.
+     */
+    private class Worker implements Runnable {
+
+        private final LinkedBlockingDeque<Job> queue;
+        private final Thread thread;
+
+        Worker(String printer) {
+            queue = new LinkedBlockingDeque<>();
+            thread = new Thread(this, "monsia-print-" + printer);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<Job> batch = collect(queue.take());
+                    if (!batch.isEmpty()) {
+                        print(batch);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                logger.debug("print worker stopped " + thread.getName());
+            }
+        }
+
+        /*
+         * Returns the job and, when coalescing, the jobs that follow it
+         * within the window and match its copies and paper size.
+         */
+        private List<Job> collect(Job job) {
+            List<Job> batch = new ArrayList<>();
+            if (!fetch(job)) {
+                return batch;
+            }
+            batch.add(job);
+            if (coalesce <= 0) {
+                return batch;
+            }
+            try {
+                while (batch.size() < coalesceMax) {
+                    Job next = queue.poll(coalesce, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (!fetch(next)) {
+                        continue;
+                    }
+                    if (next.copies != job.copies || !Objects.equals(next.media, job.media)) {
+                        // starts the next batch
+                        queue.offerFirst(next);
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return batch;
+        }
+    }
+
+    private boolean fetch(Job job) {
+        if (job.file != null) {
+            return true;
+        }
+        try {
+            job.file = job.source.fetch();
+            if (coalesce > 0) {
+                PDDocument document = PDFDocuments.acquire(job.file);
+                try {
+                    job.media = PDFPrint.getMediaSizeName(document);
+                } finally {
+                    PDFDocuments.release(document);
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            logger.warn("print job " + job.id + " cannot fetch " + job.title + ": " + ex.getMessage());
+            fail(job, ex.getMessage());
+            return false;
+        }
+    }
+
+    private File merge(List<Job> batch) throws IOException {
+        File file = TempFile.createTempFile("print", "pdf");
+        file.deleteOnExit();
+        PDFMergerUtility merger = new PDFMergerUtility();
+        for (Job job : batch) {
+            merger.addSource(job.file);
+        }
+        merger.setDestinationFileName(file.getAbsolutePath());
+        merger.mergeDocuments(MemoryUsageSetting.setupTempFileOnly());
+        return file;
+    }
+
+    private void setState(List<Job> batch, State state, String message) {
+        for (Job job : batch) {
+            job.error = message;
+            job.state = state;
+            if (state == State.DONE) {
+                job.finished = System.currentTimeMillis();
+            }
+            fire(job);
+        }
+    }
+
+    private void fail(List<Job> batch, String message) {
+        for (Job job : batch) {
+            fail(job, message);
+        }
+    }
+
+    private void print(List<Job> batch) {
+        Job head = batch.get(0);
+        File file = head.file;
+        if (batch.size() > 1) {
+            try {
+                file = merge(batch);
+                logger.info("print job " + head.id + " merged " + batch.size() + " reports for " + head.printer);
+            } catch (IOException ex) {
+                logger.warn("cannot merge print jobs: " + ex.getMessage());
+                for (Job job : batch) {
+                    print(Collections.singletonList(job));
+                }
+                return;
+            }
+        }
+        StringBuilder titles = new StringBuilder();
+        for (Job job : batch) {
+            if (titles.length() > 0) {
+                titles.append(", ");
+            }
+            titles.append(job.title);
+        }
+        try {
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                for (Job job : batch) {
+                    job.attempts = attempts;
+                }
+                try {
+                    permits.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    fail(batch, ex.toString());
+                    return;
+                }
+                String message;
+                try {
+                    setState(batch, State.PRINTING, null);
+                    if (attempts == 1) {
+                        PopupNotify.popup(Messages.getString("PrintReport.notify_summary"),
+                                Messages.getString("PrintReport.notify_print_start") + "\n\n"
+                                + Messages.getString("PrintReport.printer") + head.printer + "\n\n"
+                                + Messages.getString("PrintReport.title") + titles,
+                                GtkStockIcon.get("gtk-print"), 0);
+                    }
+                    PDFPrint.printJob(file, head.copies, head.printService);
+                    setState(batch, State.DONE, null);
+                    return;
+                } catch (IOException | RuntimeException ex) {
+                    logger.warn("print job " + head.id + " " + titles + ": " + ex.getMessage());
+                    fail(batch, ex.getMessage());
+                    return;
+                } catch (PrinterException ex) {
+                    logger.warn("print job " + head.id + " " + titles + " attempt " + attempts + ": " + ex.getMessage());
+                    message = ex.getMessage();
+                } finally {
+                    permits.release();
+                }
+                if (attempts > retry) {
+                    fail(batch, message);
+                    return;
+                }
+                setState(batch, State.QUEUED, message);
+                try {
+                    Thread.sleep(retryInterval * attempts);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    fail(batch, message);
+                    return;
+                }
+            }
+        } finally {
+            if (file != head.file) {
+                file.delete();
+            }
+        }
+    }
+
+    private void fail(Job job, String message) {
+        job.error = message;
+        job.state = State.FAILED;
+        job.finished = System.currentTimeMillis();
+        fire(job);
+        PopupNotify.popup(Messages.getString("PrintReport.notify_summary"),
+                Messages.getString("PrintReport.notify_print_fail") + "\n\n"
+                + Messages.getString("PrintReport.printer") + job.printer + "\n"
+                + Messages.getString("PrintReport.title") + job.title,
+                GtkStockIcon.get("gtk-dialog-error"), 0);
+    }
+
+    /**
+     * <p>
+     * Stops the workers. Jobs that are not printed yet are dropped.</p>
+     */
+    public synchronized void shutdown() {
+        for (Worker worker : workers.values()) {
+            worker.thread.interrupt();
+        }
+        workers.clear();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.awt.BorderLayout;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import javax.swing.AbstractAction;
+import javax.swing.JDialog;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+import javax.swing.table.AbstractTableModel;
+import org.montsuqi.monsiaj.util.Messages;
+import org.montsuqi.monsiaj.widgets.Button;
+
+/**
+ * <p>
+ * Shows the jobs of a PrintSpooler: queued, printing, done and failed.</p>
+ */
+public class PrintSpoolerDialog extends JDialog implements PrintSpooler.Listener {
+
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = {"time", "title", "printer", "copies", "state", "attempts", "error"};
+    private final PrintSpooler spooler;
+    private final JobTableModel model;
+
+    public PrintSpoolerDialog(Frame owner, PrintSpooler spooler) {
+        super(owner, Messages.getString("PrintSpoolerDialog.dialog_title"), false);
+        this.spooler = spooler;
+        model = new JobTableModel();
+
+        Container container = getContentPane();
+        container.setLayout(new BorderLayout(5, 5));
+        JTable table = new JTable(model);
+        table.setAutoCreateRowSorter(true);
+        container.add(new JScrollPane(table), BorderLayout.CENTER);
+        Button closeButton = new Button(new AbstractAction(Messages.getString("PrintSpoolerDialog.close")) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        container.add(closeButton, BorderLayout.SOUTH);
+
+        setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+
+            @Override
+            public void windowClosed(WindowEvent e) {
+                PrintSpoolerDialog.this.spooler.removeListener(PrintSpoolerDialog.this);
+            }
+        });
+        setSize(new Dimension(720, 320));
+        setLocationRelativeTo(owner);
+
+        spooler.addListener(this);
+        model.update(spooler.getJobs());
+    }
+
+    @Override
+    public void jobChanged(PrintSpooler.Job job) {
+        final List<PrintSpooler.Job> jobs = spooler.getJobs();
+        SwingUtilities.invokeLater(() -> {
+            model.update(jobs);
+        });
+    }
+
+    private static class JobTableModel extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+        private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+        private List<PrintSpooler.Job> jobs = new ArrayList<>();
+
+        void update(List<PrintSpooler.Job> jobs) {
+            this.jobs = jobs;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return jobs.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return Messages.getString("PrintSpoolerDialog." + COLUMNS[column]);
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            // the newest first
+            PrintSpooler.Job job = jobs.get(jobs.size() - 1 - row);
+            switch (column) {
+                case 0:
+                    return format.format(new Date(job.getSubmitted()));
+                case 1:
+                    return job.getTitle();
+                case 2:
+                    return job.getPrinter();
+                case 3:
+                    return job.getCopies();
+                case 4:
+                    return Messages.getString("PrintSpoolerDialog." + job.getState().name().toLowerCase());
+                case 5:
+                    return job.getAttempts();
+                default:
+                    return job.getError() == null ? "" : job.getError();
+            }
+        }
+    }
+}
@@ -24,19 +24,19 @@ package org.montsuqi.monsiaj.client;
 
 import org.montsuqi.monsiaj.util.Messages;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
 import java.net.URL;
-import java.net.Proxy;
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import javax.net.ssl.SSLSocketFactory;
 import javax.swing.JOptionPane;
 import org.apache.logging.log4j.LogManager;
@@ -44,6 +44,11 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.montsuqi.monsiaj.util.CountingInputStream;
+import org.montsuqi.monsiaj.util.JSONDecoder;
+import org.montsuqi.monsiaj.util.Transfer;
+import org.montsuqi.monsiaj.widgets.TypeAheadEventQueue;
 
 /**
  * <p>
@@ -57,7 +62,6 @@ public class Protocol {
     private String protocolVersion;
     private String applicationVersion;
     private String serverType;
-    private int rpcId;
     private String sessionId;
     private String tenantId;
     private String groupId;
@@ -70,10 +74,12 @@ public class Protocol {
     private final String password;
     private boolean usePushClient;
 
-    private int totalExecTime;
-    private int appExecTime;
 
     private SSLSocketFactory sslSocketFactory;
+    private final Lane interactive;
+    private final Lane background;
+    private boolean requestCompression;
+    private final int compressThreshold;
     static final String PANDA_CLIENT_VERSION = "2.0.1";
 
     private int sslType;
@@ -87,26 +93,73 @@ public class Protocol {
     private static final String JAVA_VERSION = "Java_" + System.getProperty("java.version");
     private static final String MONSIAJ_VERSION = "monsiaj/" + Protocol.class.getPackage().getImplementationVersion();
     private static final String USER_AGENT = MONSIAJ_VERSION + " (" + OS_VERSION + "; " + JAVA_VERSION + ")";
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final int DEFAULT_COMPRESS_THRESHOLD = 8 * 1024;
 
     private String caCert;
     private String certFile;
     private String certFilePassphrase;
 
+    // guards the SSO login and its cookie, which both lanes may use
+    private final Object ssoLock = new Object();
     private String openid_connect_rp_cookie = "";
+    private ScreenDefineCache screenDefineCache;
+    private BlobCache blobCache;
+    private volatile boolean batchSupported;
+    private WebSocketRPC webSocketRPC;
+
+    /**
+     * <p>
+     * An independent path to the server. Each lane has its own lock,
+     * connections and rpc id sequence, so a call on one lane never waits for
+     * a call on the other. The interactive lane carries session control,
+     * screen definitions and send_event. The background lane carries ping,
+     * messages, downloads and BLOBs. BLOB transfers do not take the lock of
+     * the lane, as they use none of its state and the transport is thread
+     * safe: a preview fetched on the EDT does not wait for a report download.</p>
+     */
+    private static final class Lane {
+
+        private final String name;
+        private final HttpTransport transport;
+        private int rpcId;
+        private int totalExecTime;
+        private int appExecTime;
+        private boolean lastConnectionReused;
+        private long responseWireBytes;
+        private long responseBytes;
+
+        Lane(String name) {
+            this.name = name;
+            this.transport = HttpTransport.create();
+            this.rpcId = 1;
+            this.totalExecTime = 0;
+            this.appExecTime = 0;
+            this.lastConnectionReused = false;
+            this.responseWireBytes = 0;
+            this.responseBytes = 0;
+        }
+    }
 
     public Protocol(String authURI, final String user, final String pass) throws IOException, GeneralSecurityException {
-        this.rpcId = 1;
+        this.batchSupported = System.getProperty("monsia.jsonrpc.disable_batch") == null;
         this.authURI = authURI;
         this.user = user;
         this.password = pass;
         this.serverType = null;
         this.usePushClient = false;
         this.sslType = TYPE_NO_SSL;
-        this.totalExecTime = 0;
-        this.appExecTime = 0;
         this.tenantId = null;
         this.groupId = null;
         this.startupMessage = null;
+        this.interactive = new Lane("interactive");
+        this.background = new Lane("background");
+        this.requestCompression = false;
+        int threshold = DEFAULT_COMPRESS_THRESHOLD;
+        if (System.getProperty("monsia.jsonrpc.compress_threshold") != null) {
+            threshold = Integer.parseInt(System.getProperty("monsia.jsonrpc.compress_threshold"));
+        }
+        this.compressThreshold = threshold;
     }
 
     public boolean enablePushClient() {
@@ -154,19 +207,35 @@ public class Protocol {
     }
 
     public int getTotalExecTime() {
-        return totalExecTime;
+        return interactive.totalExecTime;
     }
 
     public int getAppExecTime() {
-        return appExecTime;
+        return interactive.appExecTime;
+    }
+
+    public boolean isLastConnectionReused() {
+        return interactive.lastConnectionReused;
+    }
+
+    public String getConnectionStatistics() {
+        return interactive.name + "[" + interactive.transport.getStatistics() + "] "
+                + background.name + "[" + background.transport.getStatistics() + "]";
+    }
+
+    private void setSSLSocketFactory(SSLSocketFactory factory) {
+        interactive.transport.setSSLSocketFactory(factory);
+        background.transport.setSSLSocketFactory(factory);
     }
 
     public void makeSSLSocketFactory(final String caCert) throws IOException, GeneralSecurityException {
         if (caCert == null || caCert.isEmpty()) {
             sslSocketFactory = null;
+            setSSLSocketFactory(null);
         } else {
             SSLSocketFactoryHelper helper = new SSLSocketFactoryHelper();
             sslSocketFactory = helper.getFactory(caCert, "", "");
+            setSSLSocketFactory(sslSocketFactory);
             sslType = TYPE_SSL_NO_CERT;
             this.caCert = caCert;
         }
@@ -175,6 +244,7 @@ public class Protocol {
     public void makeSSLSocketFactoryPKCS12(final String caCert, final String certFile, final String certFilePass) throws IOException, GeneralSecurityException {
         SSLSocketFactoryHelper helper = new SSLSocketFactoryHelper();
         sslSocketFactory = helper.getFactory(caCert, certFile, certFilePass);
+        setSSLSocketFactory(sslSocketFactory);
         this.sslType = TYPE_SSL_PKCS12;
         this.caCert = caCert;
         this.certFile = certFile;
@@ -184,56 +254,44 @@ public class Protocol {
     public void makeSSLSocketFactoryPKCS11(final String caCert, final String p11Lib, final String p11Slot) throws IOException, GeneralSecurityException {
         SSLSocketFactoryHelper helper = new SSLSocketFactoryHelper();
         sslSocketFactory = helper.getFactoryPKCS11(caCert, p11Lib, p11Slot);
+        setSSLSocketFactory(sslSocketFactory);
         this.sslType = TYPE_SSL_PKCS11;
     }
 
-    private HttpURLConnection getHttpURLConnection(String strURL) throws IOException {
+    private HttpTransport.Exchange openExchange(Lane lane, String method, String strURL) throws IOException {
         URL url = new URL(strURL);
-        return getHttpURLConnection(url);
+        return openExchange(lane, method, url);
     }
 
-    private HttpURLConnection getHttpURLConnection(URL url) throws IOException {
-        HttpURLConnection con = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY);
-
-        if (url.getProtocol().equals("https")) {
-            if (sslSocketFactory != null) {
-                ((HttpsURLConnection) con).setSSLSocketFactory(sslSocketFactory);
-            }
-        }
+    private HttpTransport.Exchange openExchange(Lane lane, String method, URL url) throws IOException {
+        HttpTransport.Exchange ex = lane.transport.open(method, url);
+        ex.setRequestHeader("User-Agent", USER_AGENT);
         if (url.toString().equals(authURI)) {
-            Authenticator.setDefault(new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(user, password.toCharArray());
-                }
-            });
-        } else {
-            Authenticator.setDefault(null);
+            ex.setCredentials(user, password);
         }
-        return con;
+        return ex;
     }
 
-    private String makeJSONRPCRequest(String method, JSONObject params) throws JSONException {
+    private JSONObject makeJSONRPCRequest(Lane lane, String method, JSONObject params) throws JSONException {
         JSONObject obj = new JSONObject();
         obj.put("jsonrpc", "2.0");
-        obj.put("id", rpcId);
+        obj.put("id", lane.rpcId);
         obj.put("method", method);
         obj.put("params", params);
-        rpcId += 1;
-        return obj.toString();
+        lane.rpcId += 1;
+        return obj;
     }
 
-    private Object checkJSONRPCResponse(String jsonStr) throws JSONException {
-        totalExecTime = 0;
-        appExecTime = 0;
+    private Object checkJSONRPCResponse(Lane lane, JSONObject obj, int expectedId) throws JSONException {
+        lane.totalExecTime = 0;
+        lane.appExecTime = 0;
 
-        JSONObject obj = new JSONObject(jsonStr);
         if (!obj.getString("jsonrpc").matches("2.0")) {
             throw new JSONException("invalid jsonrpc version");
         }
         int id = obj.getInt("id");
-        if (id != (this.rpcId - 1)) {
-            throw new JSONException("invalid jsonrpc id:" + id + " expected:" + (this.rpcId - 1));
+        if (id != expectedId) {
+            throw new JSONException("invalid jsonrpc id:" + id + " expected:" + expectedId);
         }
         if (obj.has("error")) {
             JSONObject objError = obj.getJSONObject("error");
@@ -250,10 +308,10 @@ public class Protocol {
             if (res.has("meta")) {
                 JSONObject meta = (JSONObject) ((JSONObject) result).getJSONObject("meta");
                 if (meta.has("total_exec_time")) {
-                    totalExecTime = meta.getInt("total_exec_time");
+                    lane.totalExecTime = meta.getInt("total_exec_time");
                 }
                 if (meta.has("app_exec_time")) {
-                    appExecTime = meta.getInt("app_exec_time");
+                    lane.appExecTime = meta.getInt("app_exec_time");
                 }
             }
         }
@@ -261,92 +319,258 @@ public class Protocol {
         return result;
     }
 
-    private ByteArrayOutputStream getHTTPBody(HttpURLConnection con) {
-        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream()) {
-            try (BufferedOutputStream bos = new BufferedOutputStream(bytes)) {
-                BufferedInputStream bis = new BufferedInputStream(con.getInputStream());
-                int length;
-                while ((length = bis.read()) != -1) {
-                    bos.write(length);
-                }
-            }
-            return bytes;
-        } catch (IOException ex) {
-            return new ByteArrayOutputStream();
+    /**
+     * <p>
+     * Wraps <var>in</var> with a decompressor matching the Content-Encoding
+     * of the response.</p>
+     */
+    private static InputStream decodeContent(InputStream in, String encoding) throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+        switch (encoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in, Transfer.CHUNK_SIZE);
+            case "deflate":
+                // some servers send raw deflate data without the zlib header
+                BufferedInputStream bis = new BufferedInputStream(in);
+                bis.mark(2);
+                int cmf = bis.read();
+                int flg = bis.read();
+                bis.reset();
+                boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+                return new InflaterInputStream(bis, new Inflater(!zlib), Transfer.CHUNK_SIZE);
+            default:
+                return in;
         }
     }
 
-    private ByteArrayOutputStream getHTTPErrorBody(HttpURLConnection con) {
-        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream()) {
-            try (BufferedOutputStream bos = new BufferedOutputStream(bytes)) {
-                BufferedInputStream bis = new BufferedInputStream(con.getErrorStream());
-                int length;
-                while ((length = bis.read()) != -1) {
-                    bos.write(length);
-                }
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes, Transfer.CHUNK_SIZE)) {
+            gz.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Decodes the JSON-RPC response body.</p>
+     * <p>
+     * The body is parsed straight from the connection stream. Only when
+     * monsia.debug.jsonrpc is set the body is buffered as a String so that it
+     * can be logged.</p>
+     */
+    private Object getHTTPBodyJSON(Lane lane, HttpTransport.Exchange ex) throws IOException, JSONException {
+        lane.responseWireBytes = 0;
+        lane.responseBytes = 0;
+        CountingInputStream wire = new CountingInputStream(ex.getInputStream());
+        CountingInputStream body = new CountingInputStream(decodeContent(wire, ex.getHeader("Content-Encoding")));
+        // the connection stream is left open here; Exchange.release closes it
+        Object obj;
+        if (System.getProperty("monsia.debug.jsonrpc") != null) {
+            String resStr = Transfer.readAll(body, -1).toString("UTF-8");
+            logger.info("---- JSONRPC response");
+            logger.info(resStr);
+            logger.info("----");
+            obj = new JSONTokener(resStr).nextValue();
+        } else {
+            obj = JSONDecoder.decode(body);
+        }
+        lane.responseWireBytes = wire.getCount();
+        lane.responseBytes = body.getCount();
+        if (!(obj instanceof JSONObject) && !(obj instanceof JSONArray)) {
+            throw new JSONException("invalid jsonrpc response");
+        }
+        return obj;
+    }
+
+    private ByteArrayOutputStream getHTTPErrorBody(HttpTransport.Exchange ex) {
+        try {
+            InputStream in = ex.getErrorStream();
+            if (in == null) {
+                return new ByteArrayOutputStream();
             }
-            return bytes;
-        } catch (IOException ex) {
+            return Transfer.readAll(decodeContent(in, ex.getHeader("Content-Encoding")), -1);
+        } catch (IOException e) {
             return new ByteArrayOutputStream();
         }
     }
 
     private void showHTTPErrorMessage(int code, String message) {
         logger.info("http error: " + code + " " + message);
+        TypeAheadEventQueue.cancel();
         JOptionPane.showMessageDialog(null, "http status code: " + code + "\n\n" + message, "http error", JOptionPane.ERROR_MESSAGE);
         System.exit(0);
     }
 
-    private synchronized Object jsonRPC(String url, String method, JSONObject params) throws JSONException, IOException {
+    private Object jsonRPC(Lane lane, String url, String method, JSONObject params) throws JSONException, IOException {
+        synchronized (lane) {
+            JSONObject req = makeJSONRPCRequest(lane, method, params);
+            int id = req.getInt("id");
+            Object res = null;
+            if (lane == interactive && webSocketRPC != null && url.equals(rpcURI)) {
+                res = callWebSocketRPC(lane, method, req.toString(), id);
+            }
+            if (res == null) {
+                res = postJSONRPC(lane, url, method, req.toString(), false);
+            }
+            if (!(res instanceof JSONObject)) {
+                throw new JSONException("invalid jsonrpc response");
+            }
+            return checkJSONRPCResponse(lane, (JSONObject) res, id);
+        }
+    }
+
+    private JSONObject callWebSocketRPC(Lane lane, String method, String reqStr, int id) throws IOException {
+        long st = System.currentTimeMillis();
+        JSONObject res = webSocketRPC.call(id, reqStr);
+        if (res == null) {
+            return null;
+        }
+        lane.lastConnectionReused = true;
+        lane.responseWireBytes = 0;
+        lane.responseBytes = 0;
+        if (System.getProperty("monsia.do_profile") != null) {
+            long et = System.currentTimeMillis();
+            logger.info(method + ":" + (et - st) + "ms"
+                    + " lane:" + lane.name
+                    + " request_bytes:" + reqStr.length()
+                    + " conn:websocket");
+        }
+        return res;
+    }
+
+    /**
+     * <p>
+     * Calls several methods in one JSON-RPC 2.0 batch request.</p>
+     * <p>
+     * The responses are matched to the requests by id, so the server may
+     * answer in any order. If the server rejects the batch(a non-200 status
+     * or a single error object instead of an array) batching is turned off
+     * for the session and the calls are made one by one. Set
+     * monsia.jsonrpc.disable_batch to never batch.</p>
+     *
+     * @param url the endpoint.
+     * @param methods the method names.
+     * @param params the params of each method.
+     * @return the results in the order of <var>methods</var>.
+     */
+    private Object[] jsonRPCBatch(Lane lane, String url, String[] methods, JSONObject[] params) throws JSONException, IOException {
+        synchronized (lane) {
+            Object[] results = new Object[methods.length];
+            if (batchSupported && methods.length > 1) {
+                JSONArray req = new JSONArray();
+                int[] ids = new int[methods.length];
+                for (int i = 0; i < methods.length; i++) {
+                    JSONObject r = makeJSONRPCRequest(lane, methods[i], params[i]);
+                    ids[i] = r.getInt("id");
+                    req.put(r);
+                }
+                Object res = postJSONRPC(lane, url, String.join("+", methods), req.toString(), true);
+                if (res instanceof JSONArray) {
+                    JSONArray array = (JSONArray) res;
+                    Map<Integer, JSONObject> byId = new HashMap<>();
+                    for (int i = 0; i < array.length(); i++) {
+                        JSONObject obj = array.getJSONObject(i);
+                        if (obj.has("id") && !obj.isNull("id")) {
+                            byId.put(obj.getInt("id"), obj);
+                        }
+                    }
+                    for (int i = 0; i < methods.length; i++) {
+                        JSONObject obj = byId.get(ids[i]);
+                        if (obj == null) {
+                            throw new JSONException("no jsonrpc response for id:" + ids[i]);
+                        }
+                        results[i] = checkJSONRPCResponse(lane, obj, ids[i]);
+                    }
+                    return results;
+                }
+                logger.info("jsonrpc batch is rejected, fall back to single calls");
+                batchSupported = false;
+            }
+            for (int i = 0; i < methods.length; i++) {
+                results[i] = jsonRPC(lane, url, methods[i], params[i]);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * <p>
+     * Posts a JSON-RPC request and returns the decoded body(a JSONObject or,
+     * for a batch, a JSONArray).</p>
+     * <p>
+     * For a batch a non-200 status is not fatal: null is returned so that the
+     * caller can fall back to single calls.</p>
+     */
+    private Object postJSONRPC(Lane lane, String url, String method, String reqStr, boolean batch) throws JSONException, IOException {
         long st = System.currentTimeMillis();
-        String reqStr = makeJSONRPCRequest(method, params);
         if (System.getProperty("monsia.debug.jsonrpc") != null) {
             logger.info("---- JSONRPC request");
             logger.info(reqStr);
             logger.info("----");
         }
-        HttpURLConnection con = getHttpURLConnection(url);
-        con.setDoOutput(true);
-        con.setInstanceFollowRedirects(false);
-        con.setRequestMethod("POST");
-        //          ((HttpsURLConnection) con).setFixedLengthStreamingMode(reqStr.length());
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setRequestProperty("User-Agent", USER_AGENT);
-
-        if (!this.openid_connect_rp_cookie.isEmpty()) {
-            con.setRequestProperty("Cookie", this.openid_connect_rp_cookie);
-            this.openid_connect_rp_cookie = "";
+        HttpTransport.Exchange ex = openExchange(lane, "POST", url);
+        ex.setRequestHeader("Content-Type", "application/json");
+        ex.setRequestHeader("Accept-Encoding", ACCEPT_ENCODING);
+
+        byte[] reqBytes = reqStr.getBytes("UTF-8");
+        byte[] reqBody = reqBytes;
+        if (requestCompression && reqBytes.length >= compressThreshold) {
+            reqBody = gzip(reqBytes);
+            ex.setRequestHeader("Content-Encoding", "gzip");
         }
 
-        try (OutputStreamWriter osw = new OutputStreamWriter(con.getOutputStream(), "UTF-8")) {
-            osw.write(reqStr);
-            osw.flush();
+        String cookie = takeOpenIDConnectCookie();
+        if (!cookie.isEmpty()) {
+            ex.setRequestHeader("Cookie", cookie);
         }
 
-        int resCode = con.getResponseCode();
-        String resMessage = con.getResponseMessage();
+        int resCode;
+        String resMessage;
+        try {
+            ex.setRequestBody(reqBody);
+            resCode = ex.getResponseCode();
+            resMessage = ex.getResponseMessage();
+        } catch (IOException e) {
+            ex.discard();
+            throw e;
+        }
+        lane.lastConnectionReused = ex.isReused();
         String body;
 
+        if (batch && resCode != 200 && resCode != 401 && resCode != 403 && resCode != 503) {
+            logger.info("jsonrpc batch http status " + resCode + " " + resMessage);
+            getHTTPErrorBody(ex);
+            ex.release();
+            return null;
+        }
+
         switch (resCode) {
             case 200:
                 // do nothing
                 break;
             case 401:
             case 403:
-                body = getHTTPErrorBody(con).toString("UTF-8");
+                body = getHTTPErrorBody(ex).toString("UTF-8");
                 if (body.equalsIgnoreCase("NOT PERMITTED CERTIFICATE")) {
                     logger.info("403 not permitted certificate");
+                    TypeAheadEventQueue.cancel();
                     JOptionPane.showMessageDialog(null, Messages.getString("Protocol.certificate_error_message"), Messages.getString("Protocol.certificate_error"), JOptionPane.ERROR_MESSAGE);
                 } else {
                     logger.info("" + resCode + " auth error ... " + body);
+                    TypeAheadEventQueue.cancel();
                     JOptionPane.showMessageDialog(null, Messages.getString("Protocol.auth_error_message"), Messages.getString("Protocol.auth_error"), JOptionPane.ERROR_MESSAGE);
                 }
                 System.exit(0);
                 break;
             case 503:
-                body = getHTTPErrorBody(con).toString("UTF-8");
+                body = getHTTPErrorBody(ex).toString("UTF-8");
                 if (body.equalsIgnoreCase("GINBEE_MAINTENANCE")) {
                     logger.info("503 server maintenance ... exit");
+                    TypeAheadEventQueue.cancel();
                     JOptionPane.showMessageDialog(null, Messages.getString("Protocol.maintenance_error_message"), Messages.getString("Protocol.maintenance_error"), JOptionPane.ERROR_MESSAGE);
                     System.exit(0);
                 } else {
@@ -358,39 +582,67 @@ public class Protocol {
                 break;
         }
 
-        Object result;
-        try (ByteArrayOutputStream bytes = getHTTPBody(con)) {
+        Object res;
+        boolean decoded = false;
+        try {
+            res = getHTTPBodyJSON(lane, ex);
             long et = System.currentTimeMillis();
             if (System.getProperty("monsia.do_profile") != null) {
-                logger.info(method + ":" + (et - st) + "ms request_bytes:" + reqStr.length() + " response_bytes:" + bytes.size());
+                logger.info(method + ":" + (et - st) + "ms"
+                        + " lane:" + lane.name
+                        + " request_bytes:" + reqBytes.length + " request_wire_bytes:" + reqBody.length
+                        + " response_bytes:" + lane.responseBytes + " response_wire_bytes:" + lane.responseWireBytes
+                        + " conn:" + (lane.lastConnectionReused ? "reuse" : "new"));
             }
-            String resStr = bytes.toString("UTF-8");
-            if (System.getProperty("monsia.debug.jsonrpc") != null) {
-                logger.info("---- JSONRPC response");
-                logger.info(resStr);
-                logger.info("----");
+            decoded = true;
+        } finally {
+            // a truncated or invalid body fails with a JSONException
+            if (!decoded) {
+                ex.discard();
             }
-            result = checkJSONRPCResponse(resStr);
         }
-        con.disconnect();
-        return result;
+        ex.release();
+        return res;
+    }
+
+    /*
+     * The cookie goes with the first request after the login only. A request
+     * made while a login runs waits for its cookie.
+     */
+    private String takeOpenIDConnectCookie() {
+        synchronized (ssoLock) {
+            String cookie = this.openid_connect_rp_cookie;
+            this.openid_connect_rp_cookie = "";
+            return cookie;
+        }
     }
 
     public void startOpenIDConnect(String sso_user, String sso_password, String sso_sp_uri) throws IOException, JSONException {
-        OpenIdConnect sso = new OpenIdConnect(sso_user, sso_password, sso_sp_uri);
-        this.openid_connect_rp_cookie = sso.connect();
+        synchronized (ssoLock) {
+            // one login at a time; the other lane does not log in again
+            OpenIdConnect sso = new OpenIdConnect(sso_user, sso_password, sso_sp_uri);
+            this.openid_connect_rp_cookie = sso.connect();
+        }
     }
 
     public void getServerInfo() throws IOException, JSONException {
         JSONObject params = new JSONObject();
-        JSONObject result = (JSONObject) jsonRPC(authURI, "get_server_info", params);
+        JSONObject result = (JSONObject) jsonRPC(interactive, authURI, "get_server_info", params);
         this.protocolVersion = result.getString("protocol_version");
         this.applicationVersion = result.getString("application_version");
         this.serverType = result.getString("server_type");
+        if (result.has("accept_encoding")) {
+            // the server accepts compressed request bodies
+            this.requestCompression = result.getString("accept_encoding").contains("gzip");
+        }
+        if (System.getProperty("monsia.jsonrpc.disable_request_compression") != null) {
+            this.requestCompression = false;
+        }
 
         logger.debug("protocol_version:" + this.protocolVersion);
         logger.debug("application_version:" + this.applicationVersion);
         logger.debug("server_type:" + this.serverType);
+        logger.debug("request_compression:" + this.requestCompression);
     }
 
     public void startSession() throws IOException, JSONException {
@@ -399,7 +651,7 @@ public class Protocol {
         meta.put("client_version", PANDA_CLIENT_VERSION);
         params.put("meta", meta);
 
-        JSONObject result = (JSONObject) jsonRPC(authURI, "start_session", params);
+        JSONObject result = (JSONObject) jsonRPC(interactive, authURI, "start_session", params);
         meta = result.getJSONObject("meta");
 
         this.sessionId = meta.getString("session_id");
@@ -424,6 +676,10 @@ public class Protocol {
         if (System.getProperty("monsia.disable_push_client") != null) {
             this.usePushClient = false;
         }
+        // the server must answer JSON-RPC requests on the pusher socket
+        if (this.usePushClient && System.getProperty("monsia.jsonrpc.websocket") != null) {
+            this.webSocketRPC = new WebSocketRPC();
+        }
         if (result.has("startup_message")) {
             this.startupMessage = result.getString("startup_message");
         }
@@ -435,23 +691,67 @@ public class Protocol {
         logger.info("restURIRoot:" + this.restURIRoot);
         logger.info("usePushClient:" + this.usePushClient);
         logger.info("pusherURI:" + this.pusherURI);
+        logger.info("jsonrpc over websocket:" + (this.webSocketRPC != null));
+
+        // application_version is only known when get_server_info was called
+        if (this.applicationVersion != null && System.getProperty("monsia.disable_screen_cache") == null) {
+            this.screenDefineCache = new ScreenDefineCache(authURI, applicationVersion);
+        }
+        // oids are only meaningful within the session
+        if (this.blobCache != null) {
+            this.blobCache.clear();
+        }
+        this.blobCache = new BlobCache(this);
+    }
+
+    /**
+     * <p>
+     * Returns the WebSocket the interactive lane uses when it is connected,
+     * or null if JSON-RPC over WebSocket is not enabled.</p>
+     *
+     * @return the WebSocketRPC or null.
+     */
+    public WebSocketRPC getWebSocketRPC() {
+        return webSocketRPC;
+    }
+
+    /**
+     * <p>
+     * Returns the BLOB cache of the session.</p>
+     *
+     * @return the BlobCache, null before startSession.
+     */
+    public BlobCache getBlobCache() {
+        return blobCache;
+    }
+
+    public String getApplicationVersion() {
+        return applicationVersion;
     }
 
     public String getServerType() {
         return serverType;
     }
 
-    public synchronized void endSession() throws IOException, JSONException {
+    public void endSession() throws IOException, JSONException {
         JSONObject params = new JSONObject();
         JSONObject meta = new JSONObject();
         meta.put("client_version", PANDA_CLIENT_VERSION);
         meta.put("session_id", this.sessionId);
         params.put("meta", meta);
 
-        JSONObject result = (JSONObject) jsonRPC(this.rpcURI, "end_session", params);
+        JSONObject result = (JSONObject) jsonRPC(interactive, this.rpcURI, "end_session", params);
+        logger.info("connection statistics " + getConnectionStatistics());
+        if (screenDefineCache != null) {
+            logger.info("screen define cache " + screenDefineCache.getStatistics());
+        }
+        if (blobCache != null) {
+            logger.info("blob cache " + blobCache.getStatistics());
+            blobCache.clear();
+        }
     }
 
-    public synchronized JSONObject getWindow() throws IOException, JSONException {
+    public JSONObject getWindow() throws IOException, JSONException {
 
         JSONObject params = new JSONObject();
         JSONObject meta = new JSONObject();
@@ -459,11 +759,39 @@ public class Protocol {
         meta.put("session_id", this.sessionId);
         params.put("meta", meta);
 
-        return (JSONObject) jsonRPC(this.rpcURI, "get_window", params);
+        return (JSONObject) jsonRPC(interactive, this.rpcURI, "get_window", params);
 
     }
 
-    public synchronized String getScreenDefine(String wname) throws IOException, JSONException {
+    /**
+     * <p>
+     * Returns the compiled screen definition of the window from the local
+     * cache, or null.</p>
+     *
+     * @param wname the window name.
+     * @return the compiled screen definition or null.
+     */
+    public byte[] getCompiledScreenDefine(String wname) {
+        if (screenDefineCache == null) {
+            return null;
+        }
+        return screenDefineCache.getCompiled(tenantId, wname);
+    }
+
+    public void putCompiledScreenDefine(String wname, byte[] compiled) {
+        if (screenDefineCache != null) {
+            screenDefineCache.putCompiled(tenantId, wname, compiled);
+        }
+    }
+
+    public String getScreenDefine(String wname) throws IOException, JSONException {
+        if (screenDefineCache != null) {
+            String cached = screenDefineCache.get(tenantId, wname);
+            if (cached != null) {
+                logger.debug("screen define cache hit:" + wname);
+                return cached;
+            }
+        }
 
         JSONObject params = new JSONObject();
         JSONObject meta = new JSONObject();
@@ -472,80 +800,146 @@ public class Protocol {
         params.put("meta", meta);
         params.put("window", wname);
 
-        JSONObject result = (JSONObject) jsonRPC(this.rpcURI, "get_screen_define", params);
-        return result.getString("screen_define");
+        JSONObject result = (JSONObject) jsonRPC(interactive, this.rpcURI, "get_screen_define", params);
+        String screenDefine = result.getString("screen_define");
+        if (screenDefineCache != null) {
+            screenDefineCache.put(tenantId, wname, screenDefine);
+        }
+        return screenDefine;
 
     }
 
-    public synchronized JSONObject sendEvent(JSONObject params) throws IOException, JSONException {
+    public JSONObject sendEvent(JSONObject params) throws IOException, JSONException {
         JSONObject meta = new JSONObject();
         meta.put("client_version", PANDA_CLIENT_VERSION);
         meta.put("session_id", this.sessionId);
         params.put("meta", meta);
-        return (JSONObject) jsonRPC(this.rpcURI, "send_event", params);
+        return (JSONObject) jsonRPC(interactive, this.rpcURI, "send_event", params);
 
     }
 
-    public synchronized JSONObject getMessage() throws IOException, JSONException {
+    public JSONObject getMessage() throws IOException, JSONException {
         JSONObject params = new JSONObject();
         JSONObject meta = new JSONObject();
         meta.put("client_version", PANDA_CLIENT_VERSION);
         meta.put("session_id", this.sessionId);
         params.put("meta", meta);
 
-        return (JSONObject) jsonRPC(this.rpcURI, "get_message", params);
+        return (JSONObject) jsonRPC(background, this.rpcURI, "get_message", params);
+    }
+
+    /**
+     * <p>
+     * Calls get_message and, if <var>withDownloads</var>, list_downloads in
+     * one batch request.</p>
+     *
+     * @param withDownloads also call list_downloads.
+     * @return {get_message result, list_downloads result or null}
+     * @throws IOException
+     * @throws JSONException
+     */
+    public Object[] getMessageAndListDownloads(boolean withDownloads) throws IOException, JSONException {
+        if (!withDownloads) {
+            return new Object[]{getMessage(), null};
+        }
+        JSONObject params = new JSONObject();
+        JSONObject meta = new JSONObject();
+        meta.put("client_version", PANDA_CLIENT_VERSION);
+        meta.put("session_id", this.sessionId);
+        params.put("meta", meta);
+
+        return jsonRPCBatch(background, this.rpcURI, new String[]{"get_message", "list_downloads"}, new JSONObject[]{params, params});
     }
 
-    public synchronized JSONArray listDownloads() throws IOException, JSONException {
+    public JSONArray listDownloads() throws IOException, JSONException {
         JSONObject params = new JSONObject();
         JSONObject meta = new JSONObject();
         meta.put("client_version", PANDA_CLIENT_VERSION);
         meta.put("session_id", this.sessionId);
         params.put("meta", meta);
 
-        return (JSONArray) jsonRPC(this.rpcURI, "list_downloads", params);
+        return (JSONArray) jsonRPC(background, this.rpcURI, "list_downloads", params);
     }
 
-    public synchronized int getBLOB(String oid, OutputStream out) throws IOException {
+    private HttpTransport.Exchange openBLOB(String oid) throws IOException {
+        URL url = new URL(this.restURIRoot + "sessions/" + this.sessionId + "/blob/" + oid);
+        return openExchange(background, "GET", url);
+    }
+
+    public int getBLOB(String oid, OutputStream out) throws IOException {
+        return getBLOB(oid, out, null);
+    }
+
+    public int getBLOB(String oid, OutputStream out, Transfer.ProgressListener listener) throws IOException {
         if (oid.equals("0")) {
             // empty object id
             out.close();
             return 404;
         }
 
-        URL url = new URL(this.restURIRoot + "sessions/" + this.sessionId + "/blob/" + oid);
-        HttpURLConnection con = getHttpURLConnection(url);
-        con.setInstanceFollowRedirects(false);
-        con.setRequestMethod("GET");
-        con.setRequestProperty("User-Agent", USER_AGENT);
-
-        try (BufferedInputStream bis = new BufferedInputStream(con.getInputStream())) {
-            int length;
-            while ((length = bis.read()) != -1) {
-                out.write(length);
-            }
+        HttpTransport.Exchange ex = openBLOB(oid);
+        try {
+            Transfer.copy(ex.getInputStream(), out, ex.getContentLength(), listener);
             out.close();
+        } catch (IOException e) {
+            ex.discard();
+            throw e;
         }
-        con.disconnect();
+        ex.release();
 
-        return con.getResponseCode();
+        return ex.getResponseCode();
     }
 
-    public synchronized String postBLOB(byte[] in) throws IOException {
+    public int getBLOB(String oid, File file) throws IOException {
+        return getBLOB(oid, file, null);
+    }
+
+    /**
+     * <p>
+     * Downloads a BLOB straight into <var>file</var>.</p>
+     *
+     * @param oid the object id.
+     * @param file destination file, overwritten.
+     * @param listener progress listener, may be null.
+     * @return the http status code.
+     * @throws IOException
+     */
+    public int getBLOB(String oid, File file, Transfer.ProgressListener listener) throws IOException {
+        if (oid.equals("0")) {
+            // empty object id
+            return 404;
+        }
+
+        HttpTransport.Exchange ex = openBLOB(oid);
+        try {
+            Transfer.copy(ex.getInputStream(), file, ex.getContentLength(), listener);
+        } catch (IOException e) {
+            ex.discard();
+            throw e;
+        }
+        ex.release();
+
+        return ex.getResponseCode();
+    }
+
+    public String postBLOB(byte[] in) throws IOException {
         URL url = new URL(this.restURIRoot + "sessions/" + this.sessionId + "/blob/");
-        HttpURLConnection con = getHttpURLConnection(url);
-        con.setInstanceFollowRedirects(false);
-        con.setRequestMethod("POST");
-        con.setDoOutput(true);
-        //((HttpsURLConnection) con.setFixedLengthStreamingMode(in.length);
-        con.setRequestProperty("Content-Type", "application/octet-stream");
-        con.setRequestProperty("User-Agent", USER_AGENT);
-        try (OutputStream os = con.getOutputStream()) {
-            os.write(in);
-            os.flush();
-        }
-        con.disconnect();
-        return con.getHeaderField("x-blob-id");
+        HttpTransport.Exchange ex = openExchange(background, "POST", url);
+        ex.setRequestHeader("Content-Type", "application/octet-stream");
+        ex.setRequestBody(in);
+        String blobId;
+        try {
+            blobId = ex.getHeader("x-blob-id");
+        } catch (IOException e) {
+            ex.discard();
+            throw e;
+        }
+        ex.release();
+        if (blobCache != null && blobId != null) {
+            // the object now holds what was posted
+            blobCache.invalidate(blobId);
+        }
+        return blobId;
     }
 
     public String getSessionId() {
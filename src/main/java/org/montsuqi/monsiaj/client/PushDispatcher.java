@@ -0,0 +1,257 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.montsuqi.monsiaj.util.GtkStockIcon;
+import org.montsuqi.monsiaj.util.Messages;
+import org.montsuqi.monsiaj.util.PopupNotify;
+
+/**
+ * <p>
+ * Hands push events to a PushHandler by lanes, so that a backlog of reports
+ * and downloads does not hold up announcements.</p>
+ * <p>
+ * There are three lanes, each with its own bounded queue and thread:
+ * notice(announcements and websocket reconnect/disconnect), report and
+ * download(client_data_ready of type report and misc). The capacity of a lane
+ * is monsia.push.capacity(default 256). put blocks while the report or
+ * download lane is full, which holds the websocket reader and so the server;
+ * a receipt or a download is never dropped, and a wait longer than
+ * monsia.push.put_timeout milliseconds(default 5000) is logged. Only the
+ * notice lane sheds: an announcement that does not fit within the put
+ * timeout is dropped, counted and the user is told that announcements were
+ * lost.</p>
+ * <p>
+ * A client_data_ready whose object_id is queued, being handled or among
+ * the last monsia.push.dedup_size(default 256) handled ones is dropped as a
+ * duplicate.</p>
+ * <p>
+ * Lanes and duplicates are told from the envelope of the PushMessage; its
+ * data is parsed on the lane thread when the handler gets it.</p>
+ */
+public class PushDispatcher {
+
+    private static final Logger logger = LogManager.getLogger(PushDispatcher.class);
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final long DEFAULT_PUT_TIMEOUT = 5 * 1000;
+    private static final int DEFAULT_DEDUP_SIZE = 256;
+
+    private final PushHandler handler;
+    private final Lane notice;
+    private final Lane report;
+    private final Lane download;
+    private final long putTimeout;
+    private final Set<String> pending;
+    private final Map<String, Boolean> handled;
+    private final AtomicLong duplicates;
+
+    private static final class Event {
+
+        private final PushMessage message;
+        private final long time;
+
+        Event(PushMessage message) {
+            this.message = message;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    private class Lane implements Runnable {
+
+        private final String name;
+        private final boolean shed;
+        private final BlockingQueue<Event> queue;
+        private final Thread thread;
+        private final AtomicLong dispatched;
+        private final AtomicLong processed;
+        private final AtomicLong dropped;
+        private final AtomicLong waitTime;
+        private volatile int maxDepth;
+        private volatile boolean shedding;
+
+        Lane(String name, int capacity, boolean shed) {
+            this.name = name;
+            this.shed = shed;
+            queue = new ArrayBlockingQueue<>(capacity);
+            dispatched = new AtomicLong();
+            processed = new AtomicLong();
+            dropped = new AtomicLong();
+            waitTime = new AtomicLong();
+            maxDepth = 0;
+            shedding = false;
+            thread = new Thread(this, "monsia-push-" + name);
+            thread.setDaemon(true);
+        }
+
+        void put(PushMessage message) throws InterruptedException {
+            Event event = new Event(message);
+            while (!queue.offer(event, putTimeout, TimeUnit.MILLISECONDS)) {
+                if (shed) {
+                    dropped.incrementAndGet();
+                    logger.warn("push " + name + " lane is full, dropped " + message);
+                    if (!shedding) {
+                        // once until the lane takes events again
+                        shedding = true;
+                        PopupNotify.popup(Messages.getString("PushDispatcher.notice_dropped"),
+                                Messages.getString("PushDispatcher.notice_dropped_message"),
+                                GtkStockIcon.get("gtk-dialog-warning"), 30);
+                    }
+                    return;
+                }
+                logger.warn("push " + name + " lane is full, still waiting to queue " + message);
+            }
+            shedding = false;
+            dispatched.incrementAndGet();
+            maxDepth = Math.max(maxDepth, queue.size());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Event event = queue.take();
+                    waitTime.addAndGet(System.currentTimeMillis() - event.time);
+                    try {
+                        handler.eventHandler(event.message.getData());
+                    } catch (JSONException ex) {
+                        logger.warn("invalid push event " + event.message + ": " + ex);
+                    } catch (RuntimeException ex) {
+                        logger.warn(ex, ex);
+                    } finally {
+                        done(event.message, true);
+                    }
+                    processed.incrementAndGet();
+                }
+            } catch (InterruptedException ex) {
+                logger.debug("push " + name + " lane stopped");
+            }
+        }
+
+        String getStatistics() {
+            long n = processed.get();
+            return name + "[queued:" + queue.size() + " max:" + maxDepth
+                    + " dispatched:" + dispatched.get() + " processed:" + n
+                    + " dropped:" + dropped.get()
+                    + " wait:" + (n > 0 ? waitTime.get() / n : 0) + "ms]";
+        }
+    }
+
+    public PushDispatcher(PushHandler handler) {
+        this.handler = handler;
+        int capacity = DEFAULT_CAPACITY;
+        if (System.getProperty("monsia.push.capacity") != null) {
+            capacity = Integer.parseInt(System.getProperty("monsia.push.capacity"));
+        }
+        long timeout = DEFAULT_PUT_TIMEOUT;
+        if (System.getProperty("monsia.push.put_timeout") != null) {
+            timeout = Long.parseLong(System.getProperty("monsia.push.put_timeout"));
+        }
+        putTimeout = timeout;
+        int dedupSize = DEFAULT_DEDUP_SIZE;
+        if (System.getProperty("monsia.push.dedup_size") != null) {
+            dedupSize = Integer.parseInt(System.getProperty("monsia.push.dedup_size"));
+        }
+        final int maxHandled = dedupSize;
+        pending = new HashSet<>();
+        handled = new LinkedHashMap<String, Boolean>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxHandled;
+            }
+        };
+        duplicates = new AtomicLong();
+        notice = new Lane("notice", Math.max(1, capacity), true);
+        report = new Lane("report", Math.max(1, capacity), false);
+        download = new Lane("download", Math.max(1, capacity), false);
+        notice.thread.start();
+        report.thread.start();
+        download.thread.start();
+    }
+
+    private static String getObjectId(PushMessage message) {
+        if ("client_data_ready".equals(message.getEvent())) {
+            return message.getObjectId();
+        }
+        return null;
+    }
+
+    private Lane getLane(PushMessage message) {
+        if ("client_data_ready".equals(message.getEvent())) {
+            if ("report".equals(message.getType())) {
+                return report;
+            }
+            return download;
+        }
+        return notice;
+    }
+
+    /**
+     * <p>
+     * Queues a push event on its lane. Blocks while a report or download
+     * lane is full; drops an announcement if the notice lane stays full for
+     * the put timeout.</p>
+     *
+     * @param message the push event.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void put(PushMessage message) throws InterruptedException {
+        String oid = getObjectId(message);
+        if (oid != null) {
+            synchronized (this) {
+                if (pending.contains(oid) || handled.containsKey(oid)) {
+                    duplicates.incrementAndGet();
+                    logger.info("drop duplicate client_data_ready " + oid);
+                    return;
+                }
+                pending.add(oid);
+            }
+        }
+        try {
+            getLane(message).put(message);
+        } catch (InterruptedException ex) {
+            // not queued, so it is not a duplicate if it comes again
+            done(message, false);
+            throw ex;
+        }
+    }
+
+    private void done(PushMessage message, boolean wasHandled) {
+        String oid = getObjectId(message);
+        if (oid != null) {
+            synchronized (this) {
+                pending.remove(oid);
+                if (wasHandled) {
+                    handled.put(oid, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    public String getStatistics() {
+        return notice.getStatistics() + " " + report.getStatistics() + " "
+                + download.getStatistics() + " duplicates:" + duplicates.get();
+    }
+
+    public void stop() {
+        notice.thread.interrupt();
+        report.thread.interrupt();
+        download.thread.interrupt();
+    }
+}
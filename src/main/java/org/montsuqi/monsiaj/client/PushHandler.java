@@ -5,7 +5,6 @@
  */
 package org.montsuqi.monsiaj.client;
 
-import java.util.concurrent.BlockingQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
@@ -17,29 +16,18 @@ import org.montsuqi.monsiaj.util.PopupNotify;
  *
  * @author mihara
  */
-public class PushHandler implements Runnable {
+public class PushHandler {
 
     static final Logger logger = LogManager.getLogger(PushHandler.class);
 
     private final Config conf;
     private final Protocol protocol;
-    private final BlockingQueue queue;
+    private final PrintSpooler spooler;
 
-    public PushHandler(Config conf, Protocol protocol, BlockingQueue queue) {
+    public PushHandler(Config conf, Protocol protocol, PrintSpooler spooler) {
         this.conf = conf;
         this.protocol = protocol;
-        this.queue = queue;
-    }
-
-    @Override
-    public void run() {
-        try {
-            while (true) {
-                eventHandler((JSONObject) queue.take());
-            }
-        } catch (InterruptedException ex) {
-            logger.error(ex, ex);
-        }
+        this.spooler = spooler;
     }
 
     public void eventHandler(JSONObject obj) {
@@ -66,7 +54,7 @@ public class PushHandler implements Runnable {
     public void clientDataReadyHandler(JSONObject obj) {
         switch (obj.getString("type")) {
             case "report":
-                Download.printReport(conf, protocol, obj);
+                Download.printReport(conf, protocol, spooler, obj);
                 break;
             case "misc":
                 Download.downloadFile(conf, protocol, obj);
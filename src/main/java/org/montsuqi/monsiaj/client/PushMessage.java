@@ -0,0 +1,327 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * A message of the push stream with only its envelope decoded.</p>
+ * <p>
+ * parse scans the text for command, data.event, data.body.type and
+ * data.body.object_id, which is what routing and the duplicate check need,
+ * without building JSON objects. getData parses the data member the first
+ * time a handler asks for it.</p>
+ */
+public class PushMessage {
+
+    private final String text;
+    private final String command;
+    private final boolean response;
+    private final String id;
+    private final String event;
+    private final String type;
+    private final String objectId;
+    private final String dataText;
+    private JSONObject data;
+
+    private PushMessage(String text, Map<String, String> members) {
+        this.text = text;
+        command = members.get("command");
+        response = members.containsKey("jsonrpc") && members.containsKey("id");
+        id = members.get("id");
+        dataText = members.get("data");
+        String e = null;
+        String t = null;
+        String o = null;
+        if (dataText != null && dataText.startsWith("{")) {
+            Map<String, String> dataMembers = scan(dataText);
+            e = dataMembers.get("event");
+            String body = dataMembers.get("body");
+            if (body != null && body.startsWith("{")) {
+                Map<String, String> bodyMembers = scan(body);
+                t = bodyMembers.get("type");
+                o = bodyMembers.get("object_id");
+            }
+        }
+        event = e;
+        type = t;
+        objectId = o;
+    }
+
+    /**
+     * <p>
+     * Constructs a message for an event raised by the client itself.</p>
+     *
+     * @param data the event, with event and body like data of the server.
+     */
+    public PushMessage(JSONObject data) {
+        text = null;
+        command = "event";
+        response = false;
+        id = null;
+        dataText = null;
+        this.data = data;
+        event = data.optString("event", null);
+        JSONObject body = data.optJSONObject("body");
+        type = body == null ? null : body.optString("type", null);
+        objectId = body == null ? null : body.optString("object_id", null);
+    }
+
+    /**
+     * <p>
+     * Decodes the envelope of a message from the server.</p>
+     *
+     * @param text the message.
+     * @return the message.
+     * @throws JSONException if the message is not a JSON object.
+     */
+    public static PushMessage parse(String text) {
+        return new PushMessage(text, scan(text));
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return true if this is a JSON-RPC response rather than a push.
+     */
+    public boolean isResponse() {
+        return response;
+    }
+
+    /**
+     * @return the id of a JSON-RPC response, as its JSON text for a number.
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getObjectId() {
+        return objectId;
+    }
+
+    /**
+     * <p>
+     * Returns the data member, parsed on the first call.</p>
+     *
+     * @return the data, or null if the message has none.
+     * @throws JSONException if the data is not a JSON object.
+     */
+    public synchronized JSONObject getData() {
+        if (data == null && dataText != null) {
+            data = new JSONObject(dataText);
+        }
+        return data;
+    }
+
+    /**
+     * <p>
+     * Parses the whole message.</p>
+     *
+     * @return the message as a JSON object.
+     */
+    public JSONObject toJSONObject() {
+        if (text == null) {
+            JSONObject obj = new JSONObject();
+            obj.put("command", command);
+            obj.put("data", data);
+            return obj;
+        }
+        return new JSONObject(text);
+    }
+
+    @Override
+    public String toString() {
+        return "command:" + command + " event:" + event + " type:" + type + " object_id:" + objectId;
+    }
+
+    /*
+     * Returns the members of a JSON object: string values unescaped, other
+     * values as their text. Nested values are skipped over, not parsed.
+     */
+    private static Map<String, String> scan(String s) {
+        Map<String, String> members = new HashMap<>();
+        int[] pos = {skipSpace(s, 0)};
+        expect(s, pos, '{');
+        if (peek(s, pos) == '}') {
+            return members;
+        }
+        while (true) {
+            if (peek(s, pos) != '"') {
+                throw new JSONException("expected a key at " + pos[0]);
+            }
+            String key = readString(s, pos);
+            expect(s, pos, ':');
+            char c = peek(s, pos);
+            String value;
+            if (c == '"') {
+                value = readString(s, pos);
+            } else {
+                int begin = pos[0];
+                skipValue(s, pos);
+                value = s.substring(begin, pos[0]).trim();
+            }
+            members.put(key, value);
+            c = peek(s, pos);
+            pos[0]++;
+            if (c == '}') {
+                return members;
+            }
+            if (c != ',') {
+                throw new JSONException("expected , or } at " + (pos[0] - 1));
+            }
+            pos[0] = skipSpace(s, pos[0]);
+        }
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static char peek(String s, int[] pos) {
+        pos[0] = skipSpace(s, pos[0]);
+        if (pos[0] >= s.length()) {
+            throw new JSONException("unexpected end of message");
+        }
+        return s.charAt(pos[0]);
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (peek(s, pos) != c) {
+            throw new JSONException("expected " + c + " at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static String readString(String s, int[] pos) {
+        int i = pos[0] + 1;
+        StringBuilder sb = null;
+        int begin = i;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                pos[0] = i + 1;
+                if (sb == null) {
+                    return s.substring(begin, i);
+                }
+                return sb.append(s, begin, i).toString();
+            }
+            if (c == '\\') {
+                if (sb == null) {
+                    sb = new StringBuilder();
+                }
+                sb.append(s, begin, i);
+                if (i + 1 >= s.length()) {
+                    break;
+                }
+                char e = s.charAt(i + 1);
+                switch (e) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (i + 6 > s.length()) {
+                            throw new JSONException("illegal escape at " + i);
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(i + 2, i + 6), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new JSONException("illegal escape at " + i);
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        sb.append(e);
+                        break;
+                }
+                i += 2;
+                begin = i;
+                continue;
+            }
+            i++;
+        }
+        throw new JSONException("unterminated string at " + pos[0]);
+    }
+
+    private static int skipString(String s, int i) {
+        for (i++; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        throw new JSONException("unterminated string");
+    }
+
+    private static void skipValue(String s, int[] pos) {
+        int depth = 0;
+        int i = pos[0];
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    i = skipString(s, i);
+                    continue;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if (depth == 0) {
+                        pos[0] = i;
+                        return;
+                    }
+                    depth--;
+                    if (depth == 0) {
+                        pos[0] = i + 1;
+                        return;
+                    }
+                    break;
+                case ',':
+                    if (depth == 0) {
+                        pos[0] = i;
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            i++;
+        }
+        throw new JSONException("unexpected end of message");
+    }
+}
@@ -26,13 +26,27 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.bind.DatatypeConverter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
@@ -40,14 +54,36 @@ import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
 import org.eclipse.jetty.websocket.api.extensions.Frame;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- *
- * @author mihara
+ * <p>
+ * Receives push events from the pusher over a websocket and hands them to a
+ * PushDispatcher.</p>
+ * <p>
+ * The receiver goes through the states of State: it connects with the one
+ * WebSocketClient it started, stays CONNECTED until the socket closes, then
+ * WAITING before it connects again. The wait is a random time up to an
+ * exponential backoff from WAIT_INIT to monsia.push.reconnect_max
+ * milliseconds(default WAIT_MAX), so the terminals spread out after a server
+ * restart. The backoff starts over after a connection that lasted STABLE.
+ * Pings are sent by a scheduler every WAIT_CONN with the send time as
+ * payload, so the pong gives the round trip time; a pong missing for
+ * PING_TIMEOUT drops the connection.</p>
+ * <p>
+ * The permessage-deflate extension is offered unless
+ * monsia.push.disable_deflate is set. The websocket thread only queues the
+ * text of a message. A decode thread reads its envelope with PushMessage,
+ * hands JSON-RPC responses to WebSocketRPC, whose caller parses them, and
+ * passes events on, leaving the data to be parsed on the lane that handles
+ * it. The queue holds monsia.push.capacity(default 256)
+ * messages. When it is full the websocket thread waits, so the server feels
+ * the backpressure and no message is lost; such waits are counted.</p>
  */
 public class PushReceiver implements Runnable {
 
@@ -56,18 +92,51 @@ public class PushReceiver implements Runnable {
     static final long WAIT_CONN = 10 * 1000;
     static final long IDLE_TIMEOUT = 30 * 1000;
     static final long PING_TIMEOUT = 30 * 1000;
+    static final long STABLE = 60 * 1000;
+    static final int DEFAULT_CAPACITY = 256;
+    static final String DEFLATE = "permessage-deflate";
+
+    /**
+     * <p>
+     * The states of the connection to the pusher.</p>
+     */
+    public enum State {
+        IDLE, CONNECTING, CONNECTED, WAITING, STOPPED
+    }
 
     static final Logger logger = LogManager.getLogger(PushReceiver.class);
     private final URI uri;
     private final String auth;
     private final SslContextFactory sslContextFactory;
     private final Protocol protocol;
-    private final BlockingQueue queue;
+    private final PushDispatcher dispatcher;
+    private final WebSocketRPC webSocketRPC;
+    private final long waitMax;
+    private final boolean compress;
+    private final BlockingQueue<String> inbox;
+    private final AtomicLong messages;
+    private final AtomicLong inboxFull;
+    private final AtomicLong chars;
+    private volatile boolean deflate;
+    private final AtomicLong connects;
+    private final AtomicLong connectFailures;
+    private final AtomicLong disconnects;
+    private final AtomicLong pings;
+    private final AtomicLong pongs;
+    private final AtomicLong rttTotal;
+    private volatile long rttMax;
+    private volatile long rttLast;
+    private volatile long connectTime;
+    private HttpClient http;
     private WebSocketClient client;
-    private boolean loop;
+    private ScheduledExecutorService pinger;
+    private final CountDownLatch stopLatch;
+    private volatile PusherWebSocket current;
+    private volatile State state;
+    private volatile boolean loop;
     private boolean connWarned;
 
-    public PushReceiver(Protocol protocol, BlockingQueue queue) throws URISyntaxException, KeyStoreException, FileNotFoundException, IOException, NoSuchAlgorithmException, CertificateException {
+    public PushReceiver(Protocol protocol, PushDispatcher dispatcher) throws URISyntaxException, KeyStoreException, FileNotFoundException, IOException, NoSuchAlgorithmException, CertificateException {
         this.protocol = protocol;
         uri = new URI(protocol.getPusherURI());
         String auth_in = protocol.getUser() + ":" + protocol.getPassword();
@@ -93,14 +162,124 @@ public class PushReceiver implements Runnable {
                 this.sslContextFactory = null;
                 break;
         }
-        this.queue = queue;
+        this.dispatcher = dispatcher;
+        this.webSocketRPC = protocol.getWebSocketRPC();
+        http = null;
         client = null;
+        pinger = null;
+        stopLatch = new CountDownLatch(1);
+        current = null;
+        state = State.IDLE;
         loop = true;
         connWarned = false;
+        long max = WAIT_MAX;
+        if (System.getProperty("monsia.push.reconnect_max") != null) {
+            max = Long.parseLong(System.getProperty("monsia.push.reconnect_max"));
+        }
+        waitMax = Math.max(WAIT_INIT, max);
+        compress = System.getProperty("monsia.push.disable_deflate") == null;
+        int capacity = DEFAULT_CAPACITY;
+        if (System.getProperty("monsia.push.capacity") != null) {
+            capacity = Integer.parseInt(System.getProperty("monsia.push.capacity"));
+        }
+        inbox = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        messages = new AtomicLong();
+        chars = new AtomicLong();
+        inboxFull = new AtomicLong();
+        deflate = false;
+        connects = new AtomicLong();
+        connectFailures = new AtomicLong();
+        disconnects = new AtomicLong();
+        pings = new AtomicLong();
+        pongs = new AtomicLong();
+        rttTotal = new AtomicLong();
+        rttMax = 0;
+        rttLast = 0;
+        connectTime = 0;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    private void setState(State state) {
+        logger.debug("pusher " + this.state + " -> " + state);
+        this.state = state;
     }
 
     public void stop() {
         loop = false;
+        PusherWebSocket socket = current;
+        if (socket != null) {
+            socket.close();
+        }
+        // wakes a reconnect wait; an interrupt could hit client.stop
+        stopLatch.countDown();
+    }
+
+    /**
+     * <p>
+     * Returns the connects, the failed connects, the disconnects, the time
+     * of the last connect, the ping round trip times and the messages
+     * received.</p>
+     *
+     * @return the statistics.
+     */
+    public String getStatistics() {
+        long n = pongs.get();
+        return "state:" + state
+                + " connects:" + connects.get()
+                + " connect_failures:" + connectFailures.get()
+                + " disconnects:" + disconnects.get()
+                + " connect_time:" + connectTime + "ms"
+                + " pings:" + pings.get() + " pongs:" + n
+                + " rtt_last:" + rttLast + "ms"
+                + " rtt_avg:" + (n > 0 ? rttTotal.get() / n : 0) + "ms"
+                + " rtt_max:" + rttMax + "ms"
+                + " messages:" + messages.get()
+                + " chars:" + chars.get()
+                + " inbox_full:" + inboxFull.get()
+                + " deflate:" + deflate;
+    }
+
+    /*
+     * Full jitter: a random wait up to the exponential backoff, so that the
+     * terminals do not reconnect in lockstep after a server restart.
+     */
+    private long getReconnectWait(int attempt) {
+        long cap = WAIT_INIT << Math.min(attempt, 20);
+        cap = Math.min(cap, waitMax);
+        return ThreadLocalRandom.current().nextLong(cap / 4, cap + 1);
+    }
+
+    private void startClient() throws Exception {
+        if (this.sslContextFactory != null) {
+            http = new HttpClient(sslContextFactory);
+        } else {
+            http = new HttpClient();
+        }
+        // the pusher does not keep the VM alive
+        QueuedThreadPool threads = new QueuedThreadPool();
+        threads.setName("monsia-push");
+        threads.setDaemon(true);
+        http.setExecutor(threads);
+        http.setScheduler(new ScheduledExecutorScheduler("monsia-push-scheduler", true));
+        // the websocket client does not start an HttpClient it is given
+        http.start();
+        client = new WebSocketClient(http);
+        client.setMaxIdleTimeout(IDLE_TIMEOUT);
+        client.start();
+        pinger = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "monsia-push-ping");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void stopClient() {
+        if (pinger != null) {
+            pinger.shutdownNow();
+        }
         if (client != null) {
             try {
                 client.stop();
@@ -108,67 +287,104 @@ public class PushReceiver implements Runnable {
                 logger.info(ex, ex);
             }
         }
+        if (http != null) {
+            try {
+                http.stop();
+            } catch (Exception ex) {
+                logger.info(ex, ex);
+            }
+        }
+    }
+
+    private boolean connect(PusherWebSocket socket) throws InterruptedException {
+        ClientUpgradeRequest request = new ClientUpgradeRequest();
+        request.setHeader("Authorization", "Basic " + this.auth);
+        request.setHeader("X-GINBEE-TENANT-ID", "1");
+        request.setHeader("Sec-WebSocket-Version", "13");
+        if (compress) {
+            request.addExtensions(DEFLATE);
+        }
+        logger.info("Connecting to : " + this.uri);
+        long t1 = System.currentTimeMillis();
+        Future<Session> future = null;
+        try {
+            future = client.connect(socket, this.uri, request);
+            future.get(WAIT_CONN, TimeUnit.MILLISECONDS);
+            if (socket.awaitConnect(WAIT_CONN)) {
+                connectTime = System.currentTimeMillis() - t1;
+                return true;
+            }
+        } catch (IOException | ExecutionException | TimeoutException ex) {
+            logger.info("cannot connect to pusher: " + ex);
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+        socket.close();
+        return false;
     }
 
     @Override
     public void run() {
-        long waitMs = WAIT_INIT;
-        while (loop) {
-            synchronized (this) {
-                if (this.sslContextFactory != null) {
-                    client = new WebSocketClient(sslContextFactory);
-                } else {
-                    client = new WebSocketClient();
-                }
+        int attempt = 0;
+        Thread decoder = new Thread(this::decode, "monsia-push-decode");
+        decoder.setDaemon(true);
+        decoder.start();
+        try {
+            startClient();
+            while (loop) {
+                setState(State.CONNECTING);
                 PusherWebSocket socket = new PusherWebSocket();
-                try {
-                    wait(waitMs);
-                    client.setMaxIdleTimeout(IDLE_TIMEOUT);
-                    client.start();
-                    ClientUpgradeRequest request = new ClientUpgradeRequest();
-                    request.setHeader("Authorization", "Basic " + this.auth);
-                    request.setHeader("X-GINBEE-TENANT-ID", "1");
-                    request.setHeader("Sec-WebSocket-Version", "13");
-                    logger.info("Connecting to : " + this.uri);
-                    client.connect(socket, this.uri, request);
-                    wait(WAIT_CONN);
-                    if (socket.getConnected()) {
-                        waitMs = WAIT_INIT;
-                        while (!socket.getClosed()) {
-                            wait(WAIT_CONN);
-                            socket.sendPing();
-                        }
-                    } else {
-                        client.stop();
-                        client.destroy();
-                        waitMs *= 2;
-                        if (waitMs > WAIT_MAX) {
-                            waitMs = WAIT_MAX;
-                        }
-                        logger.info("wait for reconnect: " + waitMs);
+                current = socket;
+                if (connect(socket)) {
+                    connects.incrementAndGet();
+                    setState(State.CONNECTED);
+                    long connected = System.currentTimeMillis();
+                    ScheduledFuture<?> ping = pinger.scheduleWithFixedDelay(socket::sendPing, WAIT_CONN, WAIT_CONN, TimeUnit.MILLISECONDS);
+                    try {
+                        socket.awaitClose();
+                    } finally {
+                        ping.cancel(false);
+                    }
+                    disconnects.incrementAndGet();
+                    if (System.currentTimeMillis() - connected > STABLE) {
+                        attempt = 0;
                     }
-                } catch (PusherPingTimeout ex) {
-                    logger.info("websocket ping timeout");
-                } catch (Exception ex) {
-                    logger.info(ex, ex);
+                } else {
+                    connectFailures.incrementAndGet();
+                }
+                current = null;
+                if (!loop) {
+                    break;
                 }
+                setState(State.WAITING);
+                long waitMs = getReconnectWait(attempt);
+                attempt++;
+                logger.info("wait for reconnect: " + waitMs);
+                stopLatch.await(waitMs, TimeUnit.MILLISECONDS);
             }
+        } catch (InterruptedException ex) {
+            logger.debug("pusher stopped");
+        } catch (Exception ex) {
+            logger.warn(ex, ex);
+        } finally {
+            stopClient();
+            decoder.interrupt();
+            setState(State.STOPPED);
+            logger.info("pusher " + getStatistics());
         }
     }
 
-    private class PusherPingTimeout extends Exception {
-    }
-
     private class PusherErrorCommand extends Exception {
     }
 
     @WebSocket
     public class PusherWebSocket {
 
-        private boolean connected = false;
-        private boolean closed = false;
-        private Session session = null;
-        private long lastPongTime;
+        private final CountDownLatch connectLatch = new CountDownLatch(1);
+        private final CountDownLatch closeLatch = new CountDownLatch(1);
+        private volatile Session session = null;
+        private volatile long lastPongTime;
 
         public PusherWebSocket() {
             lastPongTime = System.currentTimeMillis();
@@ -178,6 +394,16 @@ public class PushReceiver implements Runnable {
         public void onConnect(Session session) {
             logger.info("---- onConnect");
             session.setIdleTimeout(IDLE_TIMEOUT);
+            deflate = false;
+            List<ExtensionConfig> extensions = session.getUpgradeResponse().getExtensions();
+            if (extensions != null) {
+                for (ExtensionConfig ext : extensions) {
+                    if (ext.getName().equals(DEFLATE)) {
+                        deflate = true;
+                    }
+                }
+            }
+            logger.debug(DEFLATE + ":" + deflate);
             try {
                 String subStr = "{"
                         + " \"command\"    : \"subscribe\","
@@ -196,35 +422,56 @@ public class PushReceiver implements Runnable {
                             + "}";
                     session.getRemote().sendString(subStr);
                 }
-                connected = true;
                 warnReconnect();
                 this.session = session;
+                if (webSocketRPC != null) {
+                    webSocketRPC.attach(session);
+                }
+                connectLatch.countDown();
             } catch (IOException ex) {
                 logger.info(ex, ex);
             }
         }
 
         @OnWebSocketMessage
-        public void onMessage(String message) throws PusherErrorCommand {
-            logger.info("---- onMessage");
-            logger.info(message);
-            messageHandler(message);
+        public void onMessage(String text) {
+            messages.incrementAndGet();
+            chars.addAndGet(text.length());
+            if (!inbox.offer(text)) {
+                inboxFull.incrementAndGet();
+                logger.info("push inbox is full, wait for the decoder");
+                try {
+                    inbox.put(text);
+                } catch (InterruptedException ex) {
+                    logger.warn("push message lost, interrupted");
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
 
         @OnWebSocketClose
         public void onClose(int statusCode, String reason) {
             logger.info("---- onClose");
             logger.info(statusCode);
-            closed = true;
-            warnDisconnect();
+            closed();
         }
 
         @OnWebSocketError
         public void onError(Session session, Throwable cause) {
             logger.info("---- onError");
             logger.info("Error " + session + " " + cause);
-            closed = true;
+            closed();
+        }
+
+        private void closed() {
+            if (closeLatch.getCount() == 0) {
+                return;
+            }
+            if (webSocketRPC != null && session != null) {
+                webSocketRPC.detach(session);
+            }
             warnDisconnect();
+            closeLatch.countDown();
         }
 
         @OnWebSocketFrame
@@ -233,23 +480,60 @@ public class PushReceiver implements Runnable {
             logger.debug(frame);
             if (frame.getOpCode() == 0x0A) {
                 lastPongTime = System.currentTimeMillis();
+                ByteBuffer payload = frame.getPayload();
+                if (payload != null && payload.remaining() >= 8) {
+                    long rtt = (System.nanoTime() - payload.getLong(payload.position())) / 1000000;
+                    rttLast = rtt;
+                    rttMax = Math.max(rttMax, rtt);
+                    rttTotal.addAndGet(rtt);
+                    pongs.incrementAndGet();
+                }
             }
         }
 
-        public boolean getConnected() {
-            return this.connected;
+        boolean awaitConnect(long timeout) throws InterruptedException {
+            return connectLatch.await(timeout, TimeUnit.MILLISECONDS) && closeLatch.getCount() > 0;
+        }
+
+        void awaitClose() throws InterruptedException {
+            closeLatch.await();
         }
 
-        public boolean getClosed() {
-            return this.closed;
+        void close() {
+            Session s = session;
+            if (s != null) {
+                s.close();
+            }
+            closed();
         }
 
-        public void sendPing() throws PusherPingTimeout {
+        /*
+         * Runs on the pinger every WAIT_CONN. The payload is the send time,
+         * which the pong echoes back.
+         */
+        void sendPing() {
+            Session s = session;
+            if (s == null) {
+                return;
+            }
+            if ((System.currentTimeMillis() - lastPongTime) > PING_TIMEOUT) {
+                logger.info("websocket ping timeout");
+                try {
+                    s.disconnect();
+                } catch (IOException ex) {
+                    logger.debug(ex, ex);
+                }
+                closed();
+                return;
+            }
             try {
-                if ((System.currentTimeMillis() - lastPongTime) > PING_TIMEOUT) {
-                    throw new PusherPingTimeout();
+                ByteBuffer payload = ByteBuffer.allocate(8);
+                payload.putLong(System.nanoTime());
+                payload.flip();
+                synchronized (s) {
+                    s.getRemote().sendPing(payload);
                 }
-                session.getRemote().sendPing(ByteBuffer.wrap("ping".getBytes()));
+                pings.incrementAndGet();
             } catch (IOException ex) {
                 logger.info(ex, ex);
             }
@@ -264,7 +548,7 @@ public class PushReceiver implements Runnable {
         try {
             JSONObject obj = new JSONObject();
             obj.put("event", "websocket_reconnect");
-            queue.put(obj);
+            dispatcher.put(new PushMessage(obj));
         } catch (InterruptedException ex) {
             logger.error(ex, ex);
         }
@@ -278,25 +562,60 @@ public class PushReceiver implements Runnable {
         try {
             JSONObject obj = new JSONObject();
             obj.put("event", "websocket_disconnect");
-            queue.put(obj);
+            dispatcher.put(new PushMessage(obj));
         } catch (InterruptedException ex) {
             logger.error(ex, ex);
         }        
     }
 
-    private void messageHandler(String message) throws PusherErrorCommand {
-        JSONObject obj = new JSONObject(message);
-        switch (obj.getString("command")) {
+    /*
+     * Runs on the decode thread until the receiver stops.
+     */
+    private void decode() {
+        try {
+            while (true) {
+                String text = inbox.take();
+                PushMessage message;
+                try {
+                    message = PushMessage.parse(text);
+                } catch (JSONException ex) {
+                    logger.warn("invalid push message: " + ex);
+                    continue;
+                }
+                if (message.isResponse()) {
+                    if (webSocketRPC != null) {
+                        webSocketRPC.dispatch(message);
+                    }
+                    continue;
+                }
+                logger.debug("---- onMessage " + message);
+                try {
+                    messageHandler(message);
+                } catch (PusherErrorCommand ex) {
+                    logger.info("pusher error: " + message);
+                    PusherWebSocket socket = current;
+                    if (socket != null) {
+                        socket.close();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            logger.debug("push decoder stopped");
+        }
+    }
+
+    private void messageHandler(PushMessage message) throws PusherErrorCommand, InterruptedException {
+        if (message.getCommand() == null) {
+            return;
+        }
+        switch (message.getCommand()) {
             case "subscribed":
-                logger.debug("subject_id:" + obj.getString("sub.id"));
+                if (logger.isDebugEnabled()) {
+                    logger.debug("subject_id:" + message.toJSONObject().optString("sub.id"));
+                }
                 break;
             case "event":
-                JSONObject data = obj.getJSONObject("data");
-                try {
-                    queue.put(data);
-                } catch (InterruptedException ex) {
-                    logger.error(ex, ex);
-                }
+                dispatcher.put(message);
                 break;
             case "error":
                 throw new PusherErrorCommand();
@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * A local cache of screen definitions(Glade XML) under
+ * ~/.monsiaj/screen_cache.</p>
+ * <p>
+ * An entry is keyed by the server URI, the tenant, the application_version
+ * reported by get_server_info and the window name, so a server upgrade makes
+ * the old entries unreachable. Each file starts with a JSON header line that
+ * holds the key and the SHA-256 of the definition. An entry whose header does
+ * not match or whose digest is wrong is deleted and counted as a miss.</p>
+ * <p>
+ * The compiled form of a definition(see ScreenDefineCodec) is kept next to it
+ * under the same key with the suffix .bin. Hits and misses of the two are
+ * counted apart, since a window whose compiled form misses is looked up again
+ * as XML.</p>
+ * <p>
+ * The total size is bounded by monsia.screen_cache.max_size(MB, default 64).
+ * Hits touch the file, and the least recently used files are evicted
+ * first.</p>
+ */
+public class ScreenDefineCache {
+
+    private static final Logger logger = LogManager.getLogger(ScreenDefineCache.class);
+    private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    private static final String SUFFIX = ".glade";
+    private static final String COMPILED_SUFFIX = ".bin";
+    private final File dir;
+    private final String server;
+    private final String applicationVersion;
+    private final long maxSize;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong compiledHits;
+    private final AtomicLong compiledMisses;
+    private final AtomicLong corrupted;
+    private final AtomicLong evictions;
+
+    public ScreenDefineCache(String server, String applicationVersion) {
+        this(new File(new File(new File(System.getProperty("user.home")), ".monsiaj"), "screen_cache"), server, applicationVersion);
+    }
+
+    public ScreenDefineCache(File dir, String server, String applicationVersion) {
+        this.dir = dir;
+        this.server = server;
+        this.applicationVersion = applicationVersion;
+        long size = DEFAULT_MAX_SIZE;
+        if (System.getProperty("monsia.screen_cache.max_size") != null) {
+            size = Long.parseLong(System.getProperty("monsia.screen_cache.max_size")) * 1024 * 1024;
+        }
+        this.maxSize = size;
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        compiledHits = new AtomicLong();
+        compiledMisses = new AtomicLong();
+        corrupted = new AtomicLong();
+        evictions = new AtomicLong();
+        dir.mkdirs();
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(data);
+            StringBuilder buf = new StringBuilder();
+            for (byte b : digest) {
+                buf.append(String.format("%02x", b & 0xff));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String keyString(String tenant, String window) {
+        return server + "\n" + tenant + "\n" + applicationVersion + "\n" + window;
+    }
+
+    private File getFile(String tenant, String window, String suffix) {
+        return new File(dir, sha256(keyString(tenant, window).getBytes(StandardCharsets.UTF_8)) + suffix);
+    }
+
+    /**
+     * <p>
+     * Returns the cached screen definition, or null.</p>
+     *
+     * @param tenant the tenant id, may be null.
+     * @param window the window name.
+     * @return the screen definition or null if it is not cached.
+     */
+    public synchronized String get(String tenant, String window) {
+        byte[] body = read(tenant, window, SUFFIX, hits, misses);
+        if (body == null) {
+            return null;
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * <p>
+     * Returns the cached compiled screen definition, or null.</p>
+     *
+     * @param tenant the tenant id, may be null.
+     * @param window the window name.
+     * @return the compiled screen definition or null if it is not cached.
+     */
+    public synchronized byte[] getCompiled(String tenant, String window) {
+        return read(tenant, window, COMPILED_SUFFIX, compiledHits, compiledMisses);
+    }
+
+    /**
+     * <p>
+     * Stores a screen definition. Errors are logged and ignored.</p>
+     *
+     * @param tenant the tenant id, may be null.
+     * @param window the window name.
+     * @param screenDefine the screen definition.
+     */
+    public synchronized void put(String tenant, String window, String screenDefine) {
+        write(tenant, window, SUFFIX, screenDefine.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * <p>
+     * Stores a compiled screen definition. Errors are logged and ignored.</p>
+     *
+     * @param tenant the tenant id, may be null.
+     * @param window the window name.
+     * @param compiled the compiled screen definition.
+     */
+    public synchronized void putCompiled(String tenant, String window, byte[] compiled) {
+        write(tenant, window, COMPILED_SUFFIX, compiled);
+    }
+
+    private byte[] read(String tenant, String window, String suffix, AtomicLong hitCount, AtomicLong missCount) {
+        File file = getFile(tenant, window, suffix);
+        if (!file.exists()) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            int eol = 0;
+            while (eol < data.length && data[eol] != '\n') {
+                eol++;
+            }
+            if (eol >= data.length) {
+                throw new IOException("no header");
+            }
+            JSONObject header = new JSONObject(new String(data, 0, eol, StandardCharsets.UTF_8));
+            byte[] body = Arrays.copyOfRange(data, eol + 1, data.length);
+            if (!keyString(tenant, window).equals(header.getString("key"))
+                    || !sha256(body).equals(header.getString("sha256"))) {
+                throw new IOException("digest mismatch");
+            }
+            file.setLastModified(System.currentTimeMillis());
+            hitCount.incrementAndGet();
+            return body;
+        } catch (IOException | JSONException ex) {
+            logger.warn("broken screen cache " + file + ": " + ex.getMessage());
+            corrupted.incrementAndGet();
+            missCount.incrementAndGet();
+            file.delete();
+            return null;
+        }
+    }
+
+    private void write(String tenant, String window, String suffix, byte[] body) {
+        File file = getFile(tenant, window, suffix);
+        File temp = new File(dir, file.getName() + ".tmp");
+        try {
+            JSONObject header = new JSONObject();
+            header.put("key", keyString(tenant, window));
+            header.put("sha256", sha256(body));
+            byte[] head = (header.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] data = new byte[head.length + body.length];
+            System.arraycopy(head, 0, data, 0, head.length);
+            System.arraycopy(body, 0, data, head.length, body.length);
+            Files.write(temp.toPath(), data);
+            // a reader never sees a partially written entry
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | JSONException ex) {
+            logger.warn("cannot write screen cache " + file + ": " + ex.getMessage());
+            temp.delete();
+            return;
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles((File d, String name) -> name.endsWith(SUFFIX) || name.endsWith(COMPILED_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= maxSize) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String getStatistics() {
+        return "hits:" + hits.get() + " misses:" + misses.get()
+                + " compiled_hits:" + compiledHits.get() + " compiled_misses:" + compiledMisses.get()
+                + " corrupted:" + corrupted.get() + " evictions:" + evictions.get();
+    }
+}
@@ -6,16 +6,22 @@
 package org.montsuqi.monsiaj.client;
 
 import org.montsuqi.monsiaj.util.Messages;
+import java.awt.AWTEvent;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Container;
 import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
@@ -34,6 +40,7 @@ import org.montsuqi.monsiaj.util.SystemEnvironment;
 import org.montsuqi.monsiaj.widgets.ExceptionDialog;
 import org.montsuqi.monsiaj.widgets.PandaTimer;
 import org.montsuqi.monsiaj.widgets.TopWindow;
+import org.montsuqi.monsiaj.widgets.TypeAheadEventQueue;
 import org.montsuqi.monsiaj.widgets.Window;
 
 /**
@@ -43,7 +50,8 @@ import org.montsuqi.monsiaj.widgets.Window;
 public class UIControl {
 
     protected static final Logger logger = LogManager.getLogger(UIControl.class);
-    private final HashMap<String, Node> nodeTable;
+    // read by the rpc thread to tell which windows are new
+    private final Map<String, Node> nodeTable;
     private String sessionTitle;
     private Color sessionBGColor;
     private Interface xml;
@@ -53,9 +61,13 @@ public class UIControl {
     private final Map<String, Object> screenTemplateMap;
     private final Client client;
     private final long timerPeriod;
+    private final Map<String, Long> fingerprintMap;
+    private final boolean skipUnchanged;
+    private int appliedWidgets;
+    private int skippedWidgets;
 
     public UIControl(Client client, URL styleURL, long timerPeriod) throws IOException {
-        nodeTable = new HashMap<>();
+        nodeTable = new ConcurrentHashMap<>();
         sessionTitle = "";
         sessionBGColor = null;
         topWindow = new TopWindow();
@@ -64,6 +76,31 @@ public class UIControl {
         this.client = client;
         styleMap = loadStyles(styleURL);
         this.timerPeriod = timerPeriod;
+        fingerprintMap = new HashMap<>();
+        skipUnchanged = System.getProperty("monsia.disable_widget_skip") == null;
+        appliedWidgets = 0;
+        skippedWidgets = 0;
+        if (skipUnchanged) {
+            Toolkit.getDefaultToolkit().addAWTEventListener(this::userInput,
+                    AWTEvent.KEY_EVENT_MASK | AWTEvent.MOUSE_EVENT_MASK);
+        }
+    }
+
+    /*
+     * A key or a click may change what a widget shows(a page, a selection,
+     * an edit) without an event to the server, so the widget and the
+     * widgets around it are applied again on the next update.
+     */
+    private void userInput(AWTEvent e) {
+        if (e.getID() != KeyEvent.KEY_PRESSED && e.getID() != MouseEvent.MOUSE_PRESSED) {
+            return;
+        }
+        if (!(e.getSource() instanceof Component) || fingerprintMap.isEmpty()) {
+            return;
+        }
+        for (Component c = (Component) e.getSource(); c != null; c = c.getParent()) {
+            invalidateFingerprint(c.getName());
+        }
     }
 
     public Object getScreenTemplate(String window) {
@@ -193,7 +230,7 @@ public class UIControl {
     }
 
     public Node getNode(String name) {
-        return (Node) nodeTable.get(name);
+        return nodeTable.get(name);
     }
 
     public Node getNode(Component component) {
@@ -204,33 +241,171 @@ public class UIControl {
         nodeTable.put(wName, node);
     }
 
+    /**
+     * <p>
+     * Applies the screen data <var>obj</var> to <var>widget</var> and its
+     * descendants.</p>
+     * <p>
+     * A fingerprint of the JSON subtree last applied to each widget is kept by
+     * the widget long name. When the subtree of a widget has the same
+     * fingerprint as the last time, its handler and those of its descendants
+     * are not called. A fingerprint is kept only once the subtree was applied
+     * without error, and is forgotten when the user touches the widget. Set
+     * monsia.disable_widget_skip to always apply.</p>
+     *
+     * @param xml the interface of the window.
+     * @param widget the widget to set.
+     * @param obj the screen data of the widget.
+     * @throws JSONException
+     */
     public void setWidget(Interface xml, Component widget, Object obj) throws JSONException {
+        long t1 = System.currentTimeMillis();
+        setWidget(xml, widget, obj, new IdentityHashMap<>());
+        long t2 = System.currentTimeMillis();
+        if (System.getProperty("monsia.do_profile") != null && widget != null) {
+            logger.info("[set_widget] " + widget.getName() + " " + (t2 - t1) + "ms applied:" + appliedWidgets + " skipped:" + skippedWidgets);
+        }
+    }
+
+    private void setWidget(Interface xml, Component widget, Object obj, Map<Object, Long> memo) throws JSONException {
         if (widget == null) {
             return;
         }
         if (obj == null) {
             return;
         }
+        String name = widget.getName();
+        Long fingerprint = null;
+        if (skipUnchanged) {
+            fingerprint = fingerprint(obj, memo);
+            if (fingerprint.equals(fingerprintMap.get(name))) {
+                skippedWidgets++;
+                return;
+            }
+            // a handler that fails leaves the widget to be applied again
+            fingerprintMap.remove(name);
+        }
         Class clazz = widget.getClass();
         WidgetHandler handler = WidgetHandler.getHandler(clazz);
         if (handler != null) {
-            long t1 = System.currentTimeMillis();
             handler.set(this, widget, (JSONObject) obj, styleMap);
-            long t2 = System.currentTimeMillis();
-            if (System.getProperty("monsia.do_profile") != null) {
-                //logger.info("" + (t2-t1) + "ms " + clazz.getName()+ " " + name);
-            }
+            appliedWidgets++;
         }
         if (obj instanceof JSONObject) {
             JSONObject j = (JSONObject) obj;
             for (Iterator i = j.keys(); i.hasNext();) {
                 String key = (String) i.next();
-                Component child = xml.getWidgetByLongName(widget.getName() + "." + key);
+                Component child = xml.getWidgetByLongName(name + "." + key);
                 if (child != null) {
-                    setWidget(xml, child, j.get(key));
+                    setWidget(xml, child, j.get(key), memo);
                 }
             }
         }
+        if (fingerprint != null) {
+            fingerprintMap.put(name, fingerprint);
+        }
+    }
+
+    public void resetWidgetCount() {
+        appliedWidgets = 0;
+        skippedWidgets = 0;
+    }
+
+    /**
+     * @return the number of widget handlers called since resetWidgetCount.
+     */
+    public int getAppliedWidgetCount() {
+        return appliedWidgets;
+    }
+
+    /**
+     * @return the number of unchanged subtrees skipped since resetWidgetCount.
+     */
+    public int getSkippedWidgetCount() {
+        return skippedWidgets;
+    }
+
+    /**
+     * <p>
+     * Computes a 64 bit hash of a JSON value. The hash of an object does not
+     * depend on the order of its keys. Hashes of objects and arrays are
+     * memoized by identity, so that hashing every subtree of the screen data
+     * costs one pass over it.</p>
+     */
+    static long fingerprint(Object obj, Map<Object, Long> memo) throws JSONException {
+        if (obj instanceof JSONObject) {
+            Long cached = memo.get(obj);
+            if (cached != null) {
+                return cached;
+            }
+            JSONObject j = (JSONObject) obj;
+            long h = 0x4f424a;
+            for (Iterator i = j.keys(); i.hasNext();) {
+                String key = (String) i.next();
+                h += mix(hash(key) * 31 + fingerprint(j.get(key), memo));
+            }
+            h = mix(h ^ j.length());
+            memo.put(obj, h);
+            return h;
+        } else if (obj instanceof JSONArray) {
+            Long cached = memo.get(obj);
+            if (cached != null) {
+                return cached;
+            }
+            JSONArray a = (JSONArray) obj;
+            long h = 0x415252;
+            for (int i = 0; i < a.length(); i++) {
+                h = mix(h * 31 + fingerprint(a.get(i), memo));
+            }
+            memo.put(obj, h);
+            return h;
+        } else if (obj == null) {
+            return 0;
+        }
+        return mix(hash(obj.getClass().getName()) ^ hash(obj.toString()));
+    }
+
+    private static long hash(String s) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * <p>
+     * Forgets the fingerprint of the widget and of its ancestors, so that the
+     * next setWidget applies them again.</p>
+     */
+    private void invalidateFingerprint(String name) {
+        if (name == null) {
+            return;
+        }
+        while (true) {
+            fingerprintMap.remove(name);
+            int index = name.lastIndexOf('.');
+            if (index == -1) {
+                break;
+            }
+            name = name.substring(0, index);
+        }
+    }
+
+    private void invalidateWindowFingerprints(String windowName) {
+        String prefix = windowName + ".";
+        fingerprintMap.keySet().removeIf(key -> key.equals(windowName) || key.startsWith(prefix));
     }
 
     public void showWindow(String name) {
@@ -266,6 +441,7 @@ public class UIControl {
             return;
         }
         Window window = node.getWindow();
+        invalidateWindowFingerprints(name);
 
         if (window.isDialog()) {
             JDialog dialog = window.getDialog();
@@ -367,49 +543,53 @@ public class UIControl {
     }
 
     public void sendEvent(Component widget, Object userData) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            // e.g. send_event_when_idle fires on a timer thread
+            SwingUtilities.invokeLater(() -> sendEvent(widget, userData));
+            return;
+        }
         if (client.isReceiving()) {
             return;
         }
-        try {
-            client.startReceiving();
-
-            java.awt.Window window;
-            if (widget instanceof JMenuItem) {
-                JComponent c = (JComponent) widget;
-                window = (java.awt.Window) c.getClientProperty("window");
-            } else {
-                window = SwingUtilities.windowForComponent(widget);
-            }
-            if (window == null || widget == null) {
-                return;
-            }
-            if (!window.getName().equals(client.getFocusedWindow())) {
-                return;
-            }
+        java.awt.Window window;
+        if (widget instanceof JMenuItem) {
+            JComponent c = (JComponent) widget;
+            window = (java.awt.Window) c.getClientProperty("window");
+        } else {
+            window = SwingUtilities.windowForComponent(widget);
+        }
+        if (window == null || widget == null) {
+            return;
+        }
+        if (!window.getName().equals(client.getFocusedWindow())) {
+            return;
+        }
+        client.startReceiving();
 
-            String oldTitle = getTitle(window);
-            setTitle(window, Messages.getString("Client.loading"));
+        String oldTitle = getTitle(window);
+        setTitle(window, Messages.getString("Client.loading"));
 
-            String _windowName = getWidgetName(window.getName());
-            String _widgetName = getWidgetName(widget.getName());
-            String event;
-            if (userData == null) {
+        String _windowName = getWidgetName(window.getName());
+        String _widgetName = getWidgetName(widget.getName());
+        String event;
+        if (userData == null) {
+            event = _widgetName;
+        } else {
+            event = userData.toString();
+            if (event.length() == 0) {
                 event = _widgetName;
-            } else {
-                event = userData.toString();
-                if (event.length() == 0) {
-                    event = _widgetName;
-                }
             }
-            org.montsuqi.monsiaj.widgets.Window.busyAllWindows();
-            client.sendEvent(_windowName, _widgetName, event);
-
+        }
+        org.montsuqi.monsiaj.widgets.Window.busyAllWindows();
+        TypeAheadEventQueue.hold();
+        client.sendEvent(_windowName, _widgetName, event, () -> {
             if (Messages.getString("Client.loading").equals(getTitle(window))) {
                 setTitle(window, oldTitle);
             }
-        } finally {
             client.stopReceiving();
-        }
+            // after the focus requests of the new screen
+            SwingUtilities.invokeLater(TypeAheadEventQueue::release);
+        });
     }
 
     public void addChangedWidget(Component widget) {
@@ -421,6 +601,8 @@ public class UIControl {
 
     public void _addChangedWidget(Component widget) {
         changedWidgetMap.put(widget.getName(), widget);
+        // the widget no longer shows what the server sent last
+        invalidateFingerprint(widget.getName());
     }
 
     public void clearChangedWidget() {
@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Carries JSON-RPC requests over the push WebSocket.</p>
+ * <p>
+ * PushReceiver attaches its session when it is connected and detaches it when
+ * it is closed. A request is sent as a text message and the caller waits for
+ * the message with the same id; messages with jsonrpc and id are taken out of
+ * the push stream by dispatch. The response is handed over with only its
+ * envelope read and is parsed on the calling thread. When no session is attached or the request
+ * cannot be sent, call returns null and Protocol posts it over HTTP instead.
+ * Once a request is sent it is never resent, so a session closed before the
+ * response fails the call like a dropped HTTP connection.</p>
+ * <p>
+ * The wait is bounded by monsia.jsonrpc.websocket.timeout(seconds, default
+ * 120).</p>
+ */
+public class WebSocketRPC {
+
+    private static final Logger logger = LogManager.getLogger(WebSocketRPC.class);
+    private static final long DEFAULT_TIMEOUT = 120 * 1000;
+    private final Map<Integer, CompletableFuture<PushMessage>> pending;
+    private final long timeout;
+    private volatile Session session;
+
+    public WebSocketRPC() {
+        pending = new ConcurrentHashMap<>();
+        long t = DEFAULT_TIMEOUT;
+        if (System.getProperty("monsia.jsonrpc.websocket.timeout") != null) {
+            t = Long.parseLong(System.getProperty("monsia.jsonrpc.websocket.timeout")) * 1000;
+        }
+        timeout = t;
+        session = null;
+    }
+
+    void attach(Session session) {
+        this.session = session;
+        logger.info("jsonrpc over websocket enabled");
+    }
+
+    void detach(Session session) {
+        if (this.session != session) {
+            return;
+        }
+        this.session = null;
+        IOException ex = new IOException("websocket closed");
+        for (CompletableFuture<PushMessage> future : pending.values()) {
+            future.completeExceptionally(ex);
+        }
+        logger.info("jsonrpc over websocket disabled");
+    }
+
+    public boolean isConnected() {
+        Session s = session;
+        return s != null && s.isOpen();
+    }
+
+    /**
+     * <p>
+     * Takes a JSON-RPC response out of the push stream.</p>
+     *
+     * @param message a message received on the push WebSocket.
+     * @return true if the message was a JSON-RPC response.
+     */
+    boolean dispatch(PushMessage message) {
+        if (!message.isResponse()) {
+            return false;
+        }
+        CompletableFuture<PushMessage> future = null;
+        try {
+            future = pending.get(Integer.parseInt(message.getId()));
+        } catch (NumberFormatException ex) {
+            // not one of ours
+        }
+        if (future == null) {
+            logger.info("jsonrpc response for unknown id:" + message.getId());
+        } else {
+            future.complete(message);
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Sends a request and waits for its response.</p>
+     *
+     * @param id the request id.
+     * @param request the JSON-RPC request.
+     * @return the response, or null if the request was not sent.
+     * @throws IOException if the session was closed or the wait timed out
+     * after the request was sent.
+     */
+    public JSONObject call(int id, String request) throws IOException {
+        Session s = session;
+        if (s == null || !s.isOpen()) {
+            return null;
+        }
+        CompletableFuture<PushMessage> future = new CompletableFuture<>();
+        pending.put(id, future);
+        try {
+            try {
+                // the blocking remote endpoint does not allow concurrent writes
+                synchronized (s) {
+                    s.getRemote().sendString(request);
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.info("jsonrpc over websocket send failed: " + ex);
+                return null;
+            }
+            return future.get(timeout, TimeUnit.MILLISECONDS).toJSONObject();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new SocketTimeoutException("jsonrpc over websocket timeout");
+        } finally {
+            pending.remove(id);
+        }
+    }
+}
@@ -23,11 +23,7 @@
 package org.montsuqi.monsiaj.client.widgethandlers;
 
 import java.awt.Component;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Map;
-import javax.swing.Icon;
-import javax.swing.ImageIcon;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONException;
@@ -49,22 +45,12 @@ public class PixmapHandler extends WidgetHandler {
         Pixmap pixmap = (Pixmap) widget;
         this.setCommonAttribute(widget, obj, styleMap);
         if (obj.has("objectdata")) {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            try {
-                pixmap.setIcon(null);
-                String oid = obj.getString("objectdata");
-                if (oid.isEmpty() || oid.equals("0")) {
-                } else {
-                    int status = con.getClient().getProtocol().getBLOB(oid, bytes);
-                    if (status == 200 && bytes.size() > 0) {
-                        Icon icon = new ImageIcon(bytes.toByteArray());
-                        pixmap.setText("");
-                        pixmap.setIcon(icon);
-                        pixmap.validate();
-                    }
-                }
-            } catch (IOException ex) {
-                logger.warn(ex);
+            PixmapLoader.cancel(pixmap);
+            pixmap.setIcon(null);
+            String oid = obj.getString("objectdata");
+            if (oid.isEmpty() || oid.equals("0")) {
+            } else {
+                PixmapLoader.load(con.getClient().getProtocol().getBlobCache(), pixmap, oid);
             }
         }
     }
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.client.widgethandlers;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.montsuqi.monsiaj.client.BlobCache;
+import org.montsuqi.monsiaj.widgets.Pixmap;
+
+/**
+ * <p>
+ * Loads the images of Pixmap widgets off the event dispatch thread.</p>
+ * <p>
+ * load clears the widget, which stays blank as a placeholder, and returns at
+ * once. A pool of monsia.image_threads(default 2) threads fetches the BLOB
+ * through the BlobCache, decodes it and scales it down to the size of the
+ * widget, so that painting does not scale the full image every time. Only
+ * the scaled image is kept in the memory tier of the cache, under the oid and
+ * the size. The
+ * icon is set on the event dispatch thread unless the widget was given
+ * another image in the meantime.</p>
+ * <p>
+ * GIF images are decoded by the toolkit and not scaled, to keep their
+ * animation. Set monsia.pixmap.sync to load on the calling thread.</p>
+ */
+class PixmapLoader {
+
+    private static final Logger logger = LogManager.getLogger(PixmapLoader.class);
+    private static final Object REQUEST_KEY = PixmapLoader.class;
+    private static ExecutorService executor;
+
+    private PixmapLoader() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int n = 2;
+            if (System.getProperty("monsia.image_threads") != null) {
+                n = Integer.parseInt(System.getProperty("monsia.image_threads"));
+            }
+            executor = Executors.newFixedThreadPool(n, (Runnable r) -> {
+                Thread t = new Thread(r, "monsia-image");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    private static Image decode(byte[] bytes) {
+        if (bytes.length >= 4 && bytes[0] == 'G' && bytes[1] == 'I' && bytes[2] == 'F' && bytes[3] == '8') {
+            return new ImageIcon(bytes).getImage();
+        }
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image != null) {
+                return image;
+            }
+        } catch (IOException ex) {
+            logger.debug(ex, ex);
+        }
+        // formats ImageIO does not know
+        ImageIcon icon = new ImageIcon(bytes);
+        return icon.getIconWidth() > 0 ? icon.getImage() : null;
+    }
+
+    /**
+     * <p>
+     * Scales <var>src</var> down to fit in width x height keeping its aspect
+     * ratio, halving it step by step so that bilinear sampling keeps the
+     * quality. Images that already fit are returned as is.</p>
+     */
+    static BufferedImage scaleToFit(BufferedImage src, int width, int height) {
+        double scale = Math.min((double) width / src.getWidth(), (double) height / src.getHeight());
+        if (width <= 0 || height <= 0 || scale >= 1.0) {
+            return src;
+        }
+        int w = Math.max(1, (int) Math.round(src.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(src.getHeight() * scale));
+        int type = src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage img = src;
+        int cw = src.getWidth();
+        int ch = src.getHeight();
+        do {
+            cw = Math.max(w, cw / 2);
+            ch = Math.max(h, ch / 2);
+            BufferedImage tmp = new BufferedImage(cw, ch, type);
+            Graphics2D g = tmp.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, cw, ch, null);
+            g.dispose();
+            img = tmp;
+        } while (cw != w || ch != h);
+        return img;
+    }
+
+    private static Image decodeToFit(byte[] bytes, Dimension size) {
+        Image image = decode(bytes);
+        if (image instanceof BufferedImage) {
+            return scaleToFit((BufferedImage) image, size.width, size.height);
+        }
+        return image;
+    }
+
+    private static Dimension targetSize(Pixmap pixmap) {
+        if (pixmap.getWidth() > 0 && pixmap.getHeight() > 0) {
+            return pixmap.getSize();
+        }
+        // not laid out yet
+        return pixmap.getPreferredSize();
+    }
+
+    /**
+     * <p>
+     * Starts loading the image of <var>oid</var> into <var>pixmap</var>.
+     * Must be called on the event dispatch thread.</p>
+     *
+     * @param cache the BLOB cache of the session.
+     * @param pixmap the widget.
+     * @param oid the object id.
+     */
+    static void load(BlobCache cache, Pixmap pixmap, String oid) {
+        final Object request = new Object();
+        pixmap.putClientProperty(REQUEST_KEY, request);
+        pixmap.setIcon(null);
+        final Dimension size = targetSize(pixmap);
+        Runnable task = () -> {
+            Image image = null;
+            try {
+                image = cache.getDecoded(oid, size.width + "x" + size.height, Image.class,
+                        (byte[] bytes) -> decodeToFit(bytes, size));
+            } catch (IOException | RuntimeException ex) {
+                logger.warn(ex);
+            }
+            final Image result = image;
+            Runnable apply = () -> {
+                if (pixmap.getClientProperty(REQUEST_KEY) != request) {
+                    // superseded
+                    return;
+                }
+                pixmap.putClientProperty(REQUEST_KEY, null);
+                if (result != null) {
+                    pixmap.setText("");
+                    pixmap.setIcon(new ImageIcon(result));
+                    pixmap.validate();
+                }
+            };
+            if (SwingUtilities.isEventDispatchThread()) {
+                apply.run();
+            } else {
+                SwingUtilities.invokeLater(apply);
+            }
+        };
+        if (System.getProperty("monsia.pixmap.sync") != null) {
+            task.run();
+        } else {
+            getExecutor().execute(task);
+        }
+    }
+
+    /**
+     * <p>
+     * Cancels a pending load, if any, so that its result is dropped.</p>
+     *
+     * @param pixmap the widget.
+     */
+    static void cancel(Pixmap pixmap) {
+        pixmap.putClientProperty(REQUEST_KEY, null);
+    }
+}
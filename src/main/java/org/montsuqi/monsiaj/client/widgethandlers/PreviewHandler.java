@@ -23,11 +23,8 @@
 package org.montsuqi.monsiaj.client.widgethandlers;
 
 import java.awt.Component;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -61,8 +58,7 @@ class PreviewHandler extends WidgetHandler {
                 } else {
                     File temp = TempFile.createTempFile(TEMP_PREFIX, TEMP_SUFFIX);
                     temp.deleteOnExit();
-                    OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
-                    con.getClient().getProtocol().getBLOB(oid, out);
+                    con.getClient().getProtocol().getBlobCache().getBLOB(oid, temp);
                     preview.load(temp.getAbsolutePath());
                 }
             } catch (IOException | JSONException ex) {
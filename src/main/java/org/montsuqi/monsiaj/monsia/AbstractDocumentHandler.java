@@ -204,6 +204,19 @@ abstract class AbstractDocumentHandler extends DefaultHandler {
         throw new IllegalStateException("parsing is not finished yet");
     }
 
+    /**
+     * <p>
+     * Returns the parsed widget trees without building widgets.</p>
+     *
+     * @return the top level widget infos.
+     */
+    protected List<WidgetInfo> getTopLevels() {
+        if (isFinished()) {
+            return topLevels;
+        }
+        throw new IllegalStateException("parsing is not finished yet");
+    }
+
     /**
      * <
      * p>
@@ -59,6 +59,7 @@ import org.montsuqi.monsiaj.monsia.builders.WidgetBuilder;
 import org.montsuqi.monsiaj.util.ParameterConverter;
 import org.montsuqi.monsiaj.widgets.PandaCList;
 import org.montsuqi.monsiaj.widgets.PandaFocusManager;
+import org.montsuqi.monsiaj.widgets.TypeAheadEventQueue;
 import org.xml.sax.SAXException;
 
 /**
@@ -85,6 +86,7 @@ public class Interface {
 
     static {
         KeyboardFocusManager.setCurrentKeyboardFocusManager(new PandaFocusManager());
+        TypeAheadEventQueue.install();
         accelHandlers = new HashMap<>();
     }
     private static final String OLD_HANDLER = "org.montsuqi.monsiaj.monsia.Glade1Handler";
@@ -97,17 +99,27 @@ public class Interface {
     public void setFocusWidget(Component widget) {
         focusWidget = widget;
     }
-    private static final SAXParser saxParser;
+    private static final SAXParserFactory parserFactory;
 
     static {
-        SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory = SAXParserFactory.newInstance();
         parserFactory.setNamespaceAware(true);
+    }
+
+    /**
+     * <p>
+     * A SAXParser is not thread-safe, so each thread that parses screen
+     * definitions gets its own parser and reuses it.</p>
+     */
+    private static final ThreadLocal<SAXParser> saxParser = ThreadLocal.withInitial(() -> {
         try {
-            saxParser = parserFactory.newSAXParser();
+            synchronized (parserFactory) {
+                return parserFactory.newSAXParser();
+            }
         } catch (ParserConfigurationException | SAXException e) {
-            throw new ExceptionInInitializerError(e);
+            throw new InterfaceBuildingException(e);
         }
-    }
+    });
     private static final int OLD_PROLOGUE_LENGTH = 128;
 
     /**
@@ -132,6 +144,18 @@ public class Interface {
      * @return an Interface instance.
      */
     public static Interface parseInput(InputStream input, UIControl uiControl) {
+        return new Interface(parseWidgetInfo(input), uiControl);
+    }
+
+    /**
+     * <p>
+     * Parses the Glade file into widget infos without building widgets. The
+     * handler is selected in the same way as parseInput.</p>
+     *
+     * @param input source input stream from which the Glade file is read.
+     * @return the top level widget infos.
+     */
+    public static List<WidgetInfo> parseWidgetInfo(InputStream input) {
         try {
             if (!(input instanceof BufferedInputStream)) {
                 input = new BufferedInputStream(input);
@@ -145,8 +169,13 @@ public class Interface {
             Class handlerClass = Class.forName(handlerClassName);
             AbstractDocumentHandler handler = (AbstractDocumentHandler) handlerClass.newInstance();
 
-            saxParser.parse(input, handler);
-            return handler.getInterface(uiControl);
+            SAXParser parser = saxParser.get();
+            try {
+                parser.parse(input, handler);
+            } finally {
+                parser.reset();
+            }
+            return handler.getTopLevels();
         } catch (IOException | ClassNotFoundException | InstantiationException | IllegalAccessException | SAXException e) {
             throw new InterfaceBuildingException(e);
         }
@@ -169,7 +198,12 @@ public class Interface {
             if (handlerClassName.equals(OLD_HANDLER)) {
                 input = new FakeEncodingInputStream(input);
             }
-            saxParser.parse(input, handler);
+            SAXParser parser = saxParser.get();
+            try {
+                parser.parse(input, handler);
+            } finally {
+                parser.reset();
+            }
             return handler.getInterface();
         } catch (IOException | ClassNotFoundException | InstantiationException | IllegalAccessException | SAXException e) {
             throw new InterfaceBuildingException(e);
@@ -0,0 +1,367 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.monsia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.montsuqi.monsiaj.client.UIControl;
+
+/**
+ * <p>
+ * A compact binary form of the parsed screen definition(the WidgetInfo,
+ * ChildInfo, SignalInfo and AccelInfo trees).</p>
+ * <p>
+ * Reading it rebuilds the trees without the SAX parser, so an Interface can be
+ * built from it directly. The layout is:</p>
+ * <pre>
+ * "MSJB" version
+ * string table: count, (length, UTF-8 bytes)*
+ * roots: count, widget*
+ * widget: class name, name, properties, signals, accels, children
+ * properties: count, (key, value)*
+ * signals: count, (name, handler, object, after)*
+ * accels: count, (key, modifiers, signal)*
+ * children: count, (properties, has widget, widget?)*
+ * </pre>
+ * <p>
+ * Strings are written as indexes into the string table(0 is null) and all
+ * integers as unsigned varints. A stream with another magic or version is
+ * rejected with an IOException and the caller falls back to the XML.</p>
+ */
+public class ScreenDefineCodec {
+
+    private static final byte[] MAGIC = {'M', 'S', 'J', 'B'};
+    private static final int VERSION = 1;
+
+    private ScreenDefineCodec() {
+    }
+
+    /**
+     * <p>
+     * Encodes the parsed trees. Call this before building widgets from them,
+     * since some builders rewrite the properties.</p>
+     *
+     * @param roots the top level widget infos.
+     * @return the encoded bytes.
+     */
+    public static byte[] encode(List<WidgetInfo> roots) {
+        try {
+            Encoder encoder = new Encoder();
+            for (WidgetInfo info : roots) {
+                encoder.collect(info);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            writeVarint(out, VERSION);
+            writeVarint(out, encoder.strings.size());
+            for (String s : encoder.strings) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, b.length);
+                out.write(b);
+            }
+            writeVarint(out, roots.size());
+            for (WidgetInfo info : roots) {
+                encoder.writeWidget(out, info);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Decodes the trees written by encode.</p>
+     *
+     * @param input the encoded stream.
+     * @return the top level widget infos.
+     * @throws IOException if the stream is broken or of another version.
+     */
+    public static List<WidgetInfo> decode(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("not a compiled screen definition");
+            }
+        }
+        int version = readVarint(in);
+        if (version != VERSION) {
+            throw new IOException("unsupported compiled screen definition version:" + version);
+        }
+        int n = readVarint(in);
+        String[] strings = new String[n + 1];
+        for (int i = 1; i <= n; i++) {
+            byte[] b = new byte[readVarint(in)];
+            in.readFully(b);
+            strings[i] = new String(b, StandardCharsets.UTF_8);
+        }
+        Decoder decoder = new Decoder(in, strings);
+        int count = readVarint(in);
+        List<WidgetInfo> roots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            roots.add(decoder.readWidget(null));
+        }
+        return roots;
+    }
+
+    /**
+     * <p>
+     * Builds an Interface from the encoded bytes.</p>
+     *
+     * @param input the encoded stream.
+     * @param uiControl the UIControl to connect signals to.
+     * @return the Interface.
+     * @throws IOException if the stream is broken or of another version.
+     */
+    public static Interface buildInterface(InputStream input, UIControl uiControl) throws IOException {
+        return new Interface(decode(input), uiControl);
+    }
+
+    /**
+     * <p>
+     * Returns a canonical text form of the trees, for comparing a decoded tree
+     * with the one parsed from XML. The order of child properties, which are
+     * kept in a HashMap, is normalized.</p>
+     *
+     * @param roots the top level widget infos.
+     * @return the text.
+     */
+    public static String dump(List<WidgetInfo> roots) {
+        StringBuilder buf = new StringBuilder();
+        for (WidgetInfo info : roots) {
+            dump(buf, info, 0);
+        }
+        return buf.toString();
+    }
+
+    private static void dump(StringBuilder buf, WidgetInfo info, int depth) {
+        indent(buf, depth).append("widget ").append(info.getClassName()).append(' ').append(info.getName())
+                .append(" parent=").append(info.getParent() == null ? null : info.getParent().getName()).append('\n');
+        for (Map.Entry<String, String> e : info.getProperties().entrySet()) {
+            indent(buf, depth + 1).append("property ").append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        for (Object o : info.getSignals()) {
+            SignalInfo s = (SignalInfo) o;
+            indent(buf, depth + 1).append("signal ").append(s.getName()).append(' ').append(s.getHandler())
+                    .append(' ').append(s.getObject()).append(' ').append(s.isAfter()).append('\n');
+        }
+        for (Object o : info.getAccels()) {
+            AccelInfo a = (AccelInfo) o;
+            indent(buf, depth + 1).append("accel ").append(a.getKey()).append(' ').append(a.getModifiers())
+                    .append(' ').append(a.getSignal()).append('\n');
+        }
+        for (Object o : info.getChildren()) {
+            ChildInfo c = (ChildInfo) o;
+            Map<String, String> sorted = new TreeMap<>(childProperties(c));
+            indent(buf, depth + 1).append("child ").append(sorted).append('\n');
+            if (c.getWidgetInfo() != null) {
+                dump(buf, c.getWidgetInfo(), depth + 2);
+            }
+        }
+    }
+
+    private static StringBuilder indent(StringBuilder buf, int depth) {
+        for (int i = 0; i < depth; i++) {
+            buf.append("  ");
+        }
+        return buf;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> childProperties(ChildInfo c) {
+        return (Map<String, String>) c.getProperties();
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static class Encoder {
+
+        private final List<String> strings;
+        private final Map<String, Integer> index;
+
+        Encoder() {
+            strings = new ArrayList<>();
+            index = new HashMap<>();
+        }
+
+        private void intern(String s) {
+            if (s != null && !index.containsKey(s)) {
+                strings.add(s);
+                index.put(s, strings.size());
+            }
+        }
+
+        void collect(WidgetInfo info) {
+            intern(info.getClassName());
+            intern(info.getName());
+            for (Map.Entry<String, String> e : info.getProperties().entrySet()) {
+                intern(e.getKey());
+                intern(e.getValue());
+            }
+            for (Object o : info.getSignals()) {
+                SignalInfo s = (SignalInfo) o;
+                intern(s.getName());
+                intern(s.getHandler());
+                intern(s.getObject());
+            }
+            for (Object o : info.getAccels()) {
+                intern(((AccelInfo) o).getSignal());
+            }
+            for (Object o : info.getChildren()) {
+                ChildInfo c = (ChildInfo) o;
+                for (Map.Entry<String, String> e : childProperties(c).entrySet()) {
+                    intern(e.getKey());
+                    intern(e.getValue());
+                }
+                if (c.getWidgetInfo() != null) {
+                    collect(c.getWidgetInfo());
+                }
+            }
+        }
+
+        private void writeString(DataOutputStream out, String s) throws IOException {
+            writeVarint(out, s == null ? 0 : index.get(s));
+        }
+
+        private void writeProperties(DataOutputStream out, Map<String, String> properties) throws IOException {
+            writeVarint(out, properties.size());
+            for (Map.Entry<String, String> e : properties.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+
+        void writeWidget(DataOutputStream out, WidgetInfo info) throws IOException {
+            writeString(out, info.getClassName());
+            writeString(out, info.getName());
+            writeProperties(out, info.getProperties());
+            List<?> signals = info.getSignals();
+            writeVarint(out, signals.size());
+            for (Object o : signals) {
+                SignalInfo s = (SignalInfo) o;
+                writeString(out, s.getName());
+                writeString(out, s.getHandler());
+                writeString(out, s.getObject());
+                out.writeBoolean(s.isAfter());
+            }
+            List<?> accels = info.getAccels();
+            writeVarint(out, accels.size());
+            for (Object o : accels) {
+                AccelInfo a = (AccelInfo) o;
+                writeVarint(out, a.getKey());
+                writeVarint(out, a.getModifiers());
+                writeString(out, a.getSignal());
+            }
+            List<?> children = info.getChildren();
+            writeVarint(out, children.size());
+            for (Iterator<?> i = children.iterator(); i.hasNext();) {
+                ChildInfo c = (ChildInfo) i.next();
+                writeProperties(out, childProperties(c));
+                WidgetInfo child = c.getWidgetInfo();
+                out.writeBoolean(child != null);
+                if (child != null) {
+                    writeWidget(out, child);
+                }
+            }
+        }
+    }
+
+    private static class Decoder {
+
+        private final DataInputStream in;
+        private final String[] strings;
+
+        Decoder(DataInputStream in, String[] strings) {
+            this.in = in;
+            this.strings = strings;
+        }
+
+        private String readString() throws IOException {
+            int i = readVarint(in);
+            if (i >= strings.length) {
+                throw new IOException("string index out of range:" + i);
+            }
+            return strings[i];
+        }
+
+        private Map<String, String> readProperties() throws IOException {
+            int n = readVarint(in);
+            Map<String, String> properties = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                String key = readString();
+                properties.put(key, readString());
+            }
+            return properties;
+        }
+
+        WidgetInfo readWidget(WidgetInfo parent) throws IOException {
+            WidgetInfo info = new WidgetInfo(readString(), readString());
+            info.setParent(parent);
+            int n = readVarint(in);
+            for (int i = 0; i < n; i++) {
+                String key = readString();
+                info.addProperty(key, readString());
+            }
+            n = readVarint(in);
+            List<SignalInfo> signals = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                signals.add(new SignalInfo(readString(), readString(), readString(), in.readBoolean()));
+            }
+            info.setSignals(signals);
+            n = readVarint(in);
+            List<AccelInfo> accels = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int key = readVarint(in);
+                int modifiers = readVarint(in);
+                accels.add(new AccelInfo(key, modifiers, readString()));
+            }
+            info.setAccels(accels);
+            n = readVarint(in);
+            for (int i = 0; i < n; i++) {
+                ChildInfo c = new ChildInfo();
+                c.setProperties(readProperties());
+                if (in.readBoolean()) {
+                    c.setWidgetInfo(readWidget(info));
+                }
+                info.addChild(c);
+            }
+            return info;
+        }
+    }
+}
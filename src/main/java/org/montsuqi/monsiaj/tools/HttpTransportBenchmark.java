@@ -0,0 +1,122 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.tools;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.montsuqi.monsiaj.client.HttpTransport;
+import org.montsuqi.monsiaj.util.Transfer;
+
+/**
+ * <p>
+ * Compares the latency of the HttpTransport implementations against a local
+ * stub server that answers every POST with a fixed JSON-RPC response.</p>
+ * <p>
+ * usage: HttpTransportBenchmark [-n requests] [-s response_bytes]
+ * [transport ...]</p>
+ */
+public class HttpTransportBenchmark {
+
+    private static HttpServer startServer(byte[] response) throws IOException {
+        // otherwise the stub's separate header and body writes meet delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rpc", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                Transfer.readAll(in, -1);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    private static byte[] makeResponse(int size) {
+        StringBuilder buf = new StringBuilder("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"data\":\"");
+        while (buf.length() < size) {
+            buf.append('x');
+        }
+        buf.append("\"}}");
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long call(HttpTransport transport, URL url, byte[] request) throws IOException {
+        long st = System.nanoTime();
+        HttpTransport.Exchange ex = transport.open("POST", url);
+        ex.setRequestHeader("Content-Type", "application/json");
+        ex.setRequestBody(request);
+        if (ex.getResponseCode() != 200) {
+            throw new IOException("http status " + ex.getResponseCode());
+        }
+        Transfer.readAll(ex.getInputStream(), ex.getContentLength());
+        ex.release();
+        return System.nanoTime() - st;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int n = 2000;
+        int size = 4 * 1024;
+        int i = 0;
+        for (; i < args.length - 1; i += 2) {
+            if (args[i].equals("-n")) {
+                n = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-s")) {
+                size = Integer.parseInt(args[i + 1]);
+            } else {
+                break;
+            }
+        }
+        String[] names = i < args.length ? Arrays.copyOfRange(args, i, args.length) : new String[]{"jdk", "jetty"};
+
+        HttpServer server = startServer(makeResponse(size));
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/rpc");
+        byte[] request = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"send_event\",\"params\":{}}".getBytes(StandardCharsets.UTF_8);
+        try {
+            for (String name : names) {
+                HttpTransport transport = HttpTransport.create(name);
+                try {
+                    // warm up
+                    for (int j = 0; j < 200; j++) {
+                        call(transport, url, request);
+                    }
+                    long[] t = new long[n];
+                    long total = 0;
+                    for (int j = 0; j < n; j++) {
+                        t[j] = call(transport, url, request);
+                        total += t[j];
+                    }
+                    Arrays.sort(t);
+                    System.out.printf("%-6s n:%d mean:%.3fms p50:%.3fms p90:%.3fms p99:%.3fms max:%.3fms %s%n",
+                            name, n, total / 1e6 / n, percentile(t, 0.5), percentile(t, 0.9),
+                            percentile(t, 0.99), t[n - 1] / 1e6, transport.getStatistics());
+                } finally {
+                    transport.close();
+                }
+            }
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.montsuqi.monsiaj.util.JSONDecoder;
+
+/**
+ * <p>
+ * Compares the buffered JSON-RPC response decoding(bytes, String, JSONObject)
+ * with the streaming decoder on a window_data payload of about 1MB.</p>
+ * <p>
+ * usage: JSONDecodeBenchmark [response.json [repeat]]</p>
+ * <p>
+ * Without a file a synthetic get_window response with a large patient list
+ * is generated.</p>
+ */
+public class JSONDecodeBenchmark {
+
+    interface Decoder {
+
+        Object decode(byte[] data) throws Exception;
+    }
+
+    private static byte[] makePayload(int targetSize) {
+        JSONArray rows = new JSONArray();
+        JSONObject clist = new JSONObject();
+        clist.put("count", 0);
+        clist.put("item", rows);
+        int i = 0;
+        while (rows.toString().length() < targetSize) {
+            JSONObject row = new JSONObject();
+            row.put("column1", String.format("%08d", i));
+            row.put("column2", "患者氏名 " + i);
+            row.put("column3", "カンジャシメイ " + i);
+            row.put("column4", "1970-01-01");
+            row.put("column5", i % 2 == 0 ? "男" : "女");
+            rows.put(row);
+            i++;
+        }
+        clist.put("count", i);
+        JSONObject screenData = new JSONObject();
+        screenData.put("patient_list", clist);
+        JSONObject window = new JSONObject();
+        window.put("put_type", "current");
+        window.put("window", "P02");
+        window.put("screen_data", screenData);
+        JSONObject windowData = new JSONObject();
+        windowData.put("focused_window", "P02");
+        windowData.put("focused_widget", "fixed1.patient_list");
+        windowData.put("windows", new JSONArray().put(window));
+        JSONObject result = new JSONObject();
+        result.put("window_data", windowData);
+        JSONObject res = new JSONObject();
+        res.put("jsonrpc", "2.0");
+        res.put("id", 1);
+        res.put("result", result);
+        return res.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void resetPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void run(String name, Decoder decoder, byte[] data, int repeat) throws Exception {
+        // warm up
+        for (int i = 0; i < 5; i++) {
+            decoder.decode(data);
+        }
+        long total = 0;
+        long alloc = 0;
+        long peak = 0;
+        for (int i = 0; i < repeat; i++) {
+            System.gc();
+            long base = heapUsed();
+            resetPeak();
+            long a1 = allocatedBytes();
+            long t1 = System.nanoTime();
+            Object obj = decoder.decode(data);
+            long t2 = System.nanoTime();
+            long a2 = allocatedBytes();
+            peak = Math.max(peak, heapPeak() - base);
+            total += t2 - t1;
+            alloc += a2 - a1;
+            if (obj == null) {
+                throw new IllegalStateException();
+            }
+        }
+        System.out.printf("%-10s %8.2fms/response allocated:%6dKB peak_heap_delta:%6dKB%n",
+                name, total / 1e6 / repeat, alloc / repeat / 1024, peak / 1024);
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] data;
+        if (args.length > 0) {
+            data = Files.readAllBytes(new File(args[0]).toPath());
+        } else {
+            data = makePayload(1024 * 1024);
+        }
+        int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        System.out.println("payload: " + data.length + " bytes");
+
+        run("buffered", (byte[] d) -> JSONDecoder.decodeBuffered(new ByteArrayInputStream(d)), data, repeat);
+        run("streaming", (byte[] d) -> JSONDecoder.decode(new ByteArrayInputStream(d)), data, repeat);
+    }
+}
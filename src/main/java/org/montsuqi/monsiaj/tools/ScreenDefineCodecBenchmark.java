@@ -0,0 +1,65 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.montsuqi.monsiaj.monsia.Interface;
+import org.montsuqi.monsiaj.monsia.ScreenDefineCodec;
+
+/**
+ * <p>
+ * Compares parsing Glade XML(Interface.parseWidgetInfo, the part of
+ * parseInput before widgets are built) with decoding the compiled form on a
+ * corpus of screen definitions.</p>
+ * <p>
+ * usage: ScreenDefineCodecBenchmark [-n repeat] file.glade|directory ...</p>
+ */
+public class ScreenDefineCodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int repeat = 50;
+        if (args.length > 1 && args[0].equals("-n")) {
+            repeat = Integer.parseInt(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        List<File> files = ScreenDefineCodecCheck.collect(args);
+        long totalXML = 0;
+        long totalCompiled = 0;
+        for (File file : files) {
+            byte[] xml = Files.readAllBytes(file.toPath());
+            byte[] compiled = ScreenDefineCodec.encode(Interface.parseWidgetInfo(new ByteArrayInputStream(xml)));
+
+            // warm up
+            for (int i = 0; i < 10; i++) {
+                Interface.parseWidgetInfo(new ByteArrayInputStream(xml));
+                ScreenDefineCodec.decode(new ByteArrayInputStream(compiled));
+            }
+
+            long t1 = System.nanoTime();
+            for (int i = 0; i < repeat; i++) {
+                Interface.parseWidgetInfo(new ByteArrayInputStream(xml));
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < repeat; i++) {
+                ScreenDefineCodec.decode(new ByteArrayInputStream(compiled));
+            }
+            long t3 = System.nanoTime();
+            totalXML += t2 - t1;
+            totalCompiled += t3 - t2;
+            System.out.printf("%-24s xml:%7d bytes %7.3fms  compiled:%7d bytes %7.3fms%n",
+                    file.getName(), xml.length, (t2 - t1) / 1e6 / repeat,
+                    compiled.length, (t3 - t2) / 1e6 / repeat);
+        }
+        if (!files.isEmpty()) {
+            System.out.printf("total xml:%.3fms compiled:%.3fms per pass(%d files)%n",
+                    totalXML / 1e6 / repeat, totalCompiled / 1e6 / repeat, files.size());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.montsuqi.monsiaj.monsia.Interface;
+import org.montsuqi.monsiaj.monsia.ScreenDefineCodec;
+import org.montsuqi.monsiaj.monsia.WidgetInfo;
+
+/**
+ * <p>
+ * Checks that the compiled screen definition round-trips: for every Glade
+ * file the tree parsed from XML, the tree decoded from its encoding and the
+ * re-encoded bytes must be identical.</p>
+ * <p>
+ * usage: ScreenDefineCodecCheck file.glade|directory ...</p>
+ */
+public class ScreenDefineCodecCheck {
+
+    static List<File> collect(String[] args) {
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            File f = new File(arg);
+            if (f.isDirectory()) {
+                File[] list = f.listFiles((File d, String name) -> name.endsWith(".glade"));
+                if (list != null) {
+                    for (File g : list) {
+                        files.add(g);
+                    }
+                }
+            } else {
+                files.add(f);
+            }
+        }
+        return files;
+    }
+
+    static List<WidgetInfo> parse(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return Interface.parseWidgetInfo(in);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<File> files = collect(args);
+        int failed = 0;
+        for (File file : files) {
+            List<WidgetInfo> parsed = parse(file);
+            byte[] encoded = ScreenDefineCodec.encode(parsed);
+            List<WidgetInfo> decoded = ScreenDefineCodec.decode(new ByteArrayInputStream(encoded));
+            byte[] reencoded = ScreenDefineCodec.encode(decoded);
+
+            boolean ok = ScreenDefineCodec.dump(parsed).equals(ScreenDefineCodec.dump(decoded))
+                    && Arrays.equals(encoded, reencoded);
+            if (!ok) {
+                failed++;
+            }
+            System.out.printf("%-4s %s xml:%d bytes compiled:%d bytes%n",
+                    ok ? "ok" : "NG", file.getName(), file.length(), encoded.length);
+        }
+        System.out.println(files.size() + " files, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import org.montsuqi.monsiaj.util.Transfer;
+
+/**
+ * <p>
+ * Compares the old byte-at-a-time copy loop with Transfer on 1MB, 10MB and
+ * 100MB payloads, both into memory and into a temp file.</p>
+ * <p>
+ * usage: TransferBenchmark [repeat]</p>
+ */
+public class TransferBenchmark {
+
+    private static final int[] SIZES_MB = {1, 10, 100};
+
+    private static void byteLoop(InputStream in, OutputStream out) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in);
+        int length;
+        while ((length = bis.read()) != -1) {
+            out.write(length);
+        }
+        out.close();
+    }
+
+    private static void report(String name, int mb, long ns) {
+        double sec = ns / 1e9;
+        System.out.printf("%-18s %4dMB %9.1fms %9.1fMB/s%n", name, mb, ns / 1e6, mb / sec);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int repeat = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        File temp = File.createTempFile("transfer-benchmark", ".bin");
+        temp.deleteOnExit();
+        Random random = new Random(0);
+
+        for (int mb : SIZES_MB) {
+            byte[] data = new byte[mb * 1024 * 1024];
+            random.nextBytes(data);
+            for (int i = 0; i < repeat; i++) {
+                long t1 = System.nanoTime();
+                byteLoop(new ByteArrayInputStream(data), new BufferedOutputStream(new ByteArrayOutputStream()));
+                long t2 = System.nanoTime();
+                Transfer.readAll(new ByteArrayInputStream(data), data.length);
+                long t3 = System.nanoTime();
+                byteLoop(new ByteArrayInputStream(data), new BufferedOutputStream(new FileOutputStream(temp)));
+                long t4 = System.nanoTime();
+                Transfer.copy(new ByteArrayInputStream(data), temp);
+                long t5 = System.nanoTime();
+
+                report("bytes->memory", mb, t2 - t1);
+                report("transfer->memory", mb, t3 - t2);
+                report("bytes->file", mb, t4 - t3);
+                report("transfer->file", mb, t5 - t4);
+            }
+        }
+    }
+}
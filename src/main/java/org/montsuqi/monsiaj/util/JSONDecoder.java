@@ -0,0 +1,54 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * <p>
+ * Decodes JSON documents from a stream.</p>
+ * <p>
+ * decode reads the UTF-8 text through a Reader straight into the JSONObject /
+ * JSONArray tree, so the response is never held as a byte array or String.
+ * decodeBuffered is the old path(bytes, then String, then tree) and is kept
+ * for debug logging and comparison.</p>
+ */
+public class JSONDecoder {
+
+    private static final int READER_BUFFER_SIZE = 16 * 1024;
+
+    private JSONDecoder() {
+    }
+
+    /**
+     * <p>
+     * Reads one JSON value(object or array) from <var>in</var>. The stream is
+     * not closed and is not read beyond the end of the value more than the
+     * reader buffer.</p>
+     *
+     * @param in UTF-8 encoded JSON text.
+     * @return a JSONObject or JSONArray.
+     * @throws JSONException if the text is not valid JSON.
+     */
+    public static Object decode(InputStream in) throws JSONException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), READER_BUFFER_SIZE);
+        JSONTokener tokener = new JSONTokener(reader);
+        return tokener.nextValue();
+    }
+
+    public static Object decodeBuffered(InputStream in) throws IOException, JSONException {
+        ByteArrayOutputStream bytes = Transfer.readAll(in, -1);
+        return new JSONTokener(bytes.toString("UTF-8")).nextValue();
+    }
+}
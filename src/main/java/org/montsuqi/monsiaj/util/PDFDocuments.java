@@ -0,0 +1,239 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * <p>
+ * Opens the PDF files of reports within a memory budget.</p>
+ * <p>
+ * A file up to monsia.pdf.heap_threshold(MB, default 8) is buffered on the
+ * heap as long as the heap-buffered files open stay within
+ * monsia.pdf.memory_budget(MB, default 64). A larger file is buffered on the
+ * heap up to the threshold and in a scratch file under TempFile.tempDir
+ * beyond it, and a file that does not fit the budget at all only uses a
+ * scratch file.</p>
+ * <p>
+ * acquire shares one PDDocument per file, so the preview and the printing of
+ * a report do not load it twice. A PDDocument is not thread safe: users of a
+ * shared document synchronize on it while they render. open returns a
+ * document of its own. Both are given back with release, which closes the
+ * document when the last user is done.</p>
+ * <p>
+ * Files are loaded outside the class lock. The first user of a shared file
+ * loads it and the others wait for that load only.</p>
+ */
+public class PDFDocuments {
+
+    private static final Logger logger = LogManager.getLogger(PDFDocuments.class);
+    private static final long DEFAULT_HEAP_THRESHOLD = 8L * 1024 * 1024;
+    private static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final Map<String, Entry> SHARED = new HashMap<>();
+    private static final Map<PDDocument, Entry> OPEN = new IdentityHashMap<>();
+    private static long heapBytes = 0;
+
+    private static final class Entry {
+
+        private final String path;
+        private final long length;
+        private final long modified;
+        private final boolean heap;
+        private final MemoryUsageSetting setting;
+        private final CompletableFuture<PDDocument> loaded;
+        private int refs;
+
+        Entry(String path, File file, boolean heap, MemoryUsageSetting setting) {
+            this.path = path;
+            this.length = file.length();
+            this.modified = file.lastModified();
+            this.heap = heap;
+            this.setting = setting;
+            this.loaded = new CompletableFuture<>();
+            this.refs = 1;
+        }
+    }
+
+    private PDFDocuments() {
+    }
+
+    private static long getSize(String name, long def) {
+        if (System.getProperty(name) != null) {
+            return Long.parseLong(System.getProperty(name)) * 1024 * 1024;
+        }
+        return def;
+    }
+
+    /*
+     * Chooses how to buffer the file and books its heap share. Call with the
+     * class lock held.
+     */
+    private static Entry reserve(String path, File file) {
+        long threshold = getSize("monsia.pdf.heap_threshold", DEFAULT_HEAP_THRESHOLD);
+        long budget = getSize("monsia.pdf.memory_budget", DEFAULT_MEMORY_BUDGET);
+        long length = file.length();
+        MemoryUsageSetting setting;
+        boolean heap = false;
+        if (length <= threshold && heapBytes + length <= budget) {
+            setting = MemoryUsageSetting.setupMainMemoryOnly();
+            heap = true;
+        } else if (heapBytes + threshold <= budget) {
+            setting = MemoryUsageSetting.setupMixed(threshold);
+        } else {
+            setting = MemoryUsageSetting.setupTempFileOnly();
+        }
+        setting.setTempDir(TempFile.tempDir);
+        if (heap) {
+            heapBytes += length;
+        }
+        return new Entry(path, file, heap, setting);
+    }
+
+    /*
+     * Loads a reserved file without the class lock, so that a large file
+     * does not hold up the other reports.
+     */
+    private static PDDocument load(Entry entry, File file) throws IOException {
+        PDDocument document;
+        try {
+            document = PDDocument.load(file, entry.setting);
+        } catch (IOException | RuntimeException ex) {
+            synchronized (PDFDocuments.class) {
+                if (entry.heap) {
+                    heapBytes -= entry.length;
+                }
+                if (entry.path != null && SHARED.get(entry.path) == entry) {
+                    SHARED.remove(entry.path);
+                }
+            }
+            entry.loaded.completeExceptionally(ex);
+            throw ex;
+        }
+        synchronized (PDFDocuments.class) {
+            OPEN.put(document, entry);
+        }
+        entry.loaded.complete(document);
+        logger.debug("open " + file + (entry.heap ? " on heap" : " with scratch file") + " " + getStatistics());
+        return document;
+    }
+
+    /**
+     * <p>
+     * Returns the document of the file shared with the other users of the
+     * same file. Synchronize on it while rendering.</p>
+     *
+     * @param file the PDF file.
+     * @return the document.
+     * @throws IOException if the file cannot be loaded.
+     */
+    public static PDDocument acquire(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        Entry entry;
+        boolean loader = false;
+        synchronized (PDFDocuments.class) {
+            entry = SHARED.get(path);
+            if (entry != null && entry.length == file.length() && entry.modified == file.lastModified()) {
+                entry.refs++;
+            } else {
+                // a replaced file is not shared any more, its users keep the old one
+                entry = reserve(path, file);
+                SHARED.put(path, entry);
+                loader = true;
+            }
+        }
+        if (loader) {
+            return load(entry, file);
+        }
+        // another user is loading it or has loaded it
+        try {
+            return entry.loaded.join();
+        } catch (CompletionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * <p>
+     * Returns a document of its own for the file, loaded within the memory
+     * budget.</p>
+     *
+     * @param file the PDF file.
+     * @return the document.
+     * @throws IOException if the file cannot be loaded.
+     */
+    public static PDDocument open(File file) throws IOException {
+        Entry entry;
+        synchronized (PDFDocuments.class) {
+            entry = reserve(null, file);
+        }
+        return load(entry, file);
+    }
+
+    /**
+     * <p>
+     * Gives back a document from acquire or open and closes it when it has
+     * no users left.</p>
+     *
+     * @param document the document.
+     */
+    public static void release(PDDocument document) {
+        synchronized (PDFDocuments.class) {
+            Entry entry = OPEN.get(document);
+            if (entry == null) {
+                return;
+            }
+            entry.refs--;
+            if (entry.refs > 0) {
+                return;
+            }
+            OPEN.remove(document);
+            if (entry.path != null && SHARED.get(entry.path) == entry) {
+                SHARED.remove(entry.path);
+            }
+            if (entry.heap) {
+                heapBytes -= entry.length;
+            }
+        }
+        // a render still running on it finishes first
+        synchronized (document) {
+            try {
+                document.close();
+            } catch (IOException ex) {
+                logger.debug(ex, ex);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the open documents, their users and the size of the files
+     * buffered on the heap.</p>
+     *
+     * @return the statistics.
+     */
+    public static synchronized String getStatistics() {
+        int refs = 0;
+        int scratch = 0;
+        for (Entry entry : OPEN.values()) {
+            refs += entry.refs;
+            if (!entry.heap) {
+                scratch++;
+            }
+        }
+        return "documents:" + OPEN.size() + " users:" + refs + " scratch:" + scratch
+                + " heap:" + (heapBytes / 1024) + "KB";
+    }
+}
@@ -1,14 +1,21 @@
 package org.montsuqi.monsiaj.util;
 
+import java.awt.Graphics;
 import java.awt.print.*;
 import java.io.File;
 import java.io.*;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.prefs.Preferences;
 import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
 import javax.print.PrintService;
 import javax.print.PrintServiceLookup;
+import javax.print.SimpleDoc;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
 import javax.print.attribute.Size2DSyntax;
@@ -16,51 +23,208 @@ import javax.print.attribute.standard.Copies;
 import javax.print.attribute.standard.JobName;
 import javax.print.attribute.standard.MediaSize;
 import javax.print.attribute.standard.MediaSizeName;
+import javax.print.event.PrintJobAdapter;
+import javax.print.event.PrintJobEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.printing.PDFPageable;
-import org.apache.pdfbox.rendering.PDFRenderer;
 import org.montsuqi.monsiaj.client.PrinterConfig;
 
 public class PDFPrint {
     private static final Logger logger = LogManager.getLogger(PDFPrint.class);
     private static final Preferences prefs = Preferences.userNodeForPackage(PDFPrint.class);
+    private static final long DEFAULT_JOB_TIMEOUT = 60 * 1000;
 
     public static void print(File file, int copies, PrintService ps) {
+        try {
+            printJob(file, copies, ps);
+        } catch (IOException | PrinterException ex) {
+            logger.warn(ex, ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Prints a PDF file to the given printer without a dialog. Unlike print,
+     * errors are thrown to the caller so that it can retry.</p>
+     *
+     * @param file the PDF file.
+     * @param copies the number of copies.
+     * @param ps the printer.
+     * @throws IOException if the file cannot be read.
+     * @throws PrinterException if the printer fails.
+     */
+    public static void printJob(File file, int copies, PrintService ps) throws IOException, PrinterException {
         logger.debug("print start - " + file);
+        if (System.getProperty("monsia.print.disable_pdf_passthrough") == null
+                && ps.isDocFlavorSupported(DocFlavor.INPUT_STREAM.PDF)) {
+            printPassThrough(file, copies, ps);
+            logger.debug("print end - " + file);
+            return;
+        }
+        PDDocument document = PDFDocuments.acquire(file);
         try {
-            try (PDDocument document = PDDocument.load(file)) {
-                MediaSizeName size = getMediaSizeName(document);
-                
-                PrinterJob job = PrinterJob.getPrinterJob();
-                job.setPrintService(ps);
-                job.setPageable(new PDFPageable(document));
-                PrintRequestAttributeSet attr = new HashPrintRequestAttributeSet();
-                attr.add(size);
-                attr.add(new Copies(copies));
-                attr.add(new JobName(file.getName(), null));
-                
-                PageFormat pf = job.getPageFormat(attr);
-                Paper paper = pf.getPaper();
-                paper.setImageableArea(0, 0, paper.getWidth(), paper.getHeight());
-                pf.setPaper(paper);
-                
+            MediaSizeName size = getMediaSizeName(document);
+            
+            PrinterJob job = PrinterJob.getPrinterJob();
+            job.setPrintService(ps);
+            PageRasterizer rasterizer = null;
+            if (System.getProperty("monsia.print.disable_prerender") == null
+                    && document.getNumberOfPages() > 1 && PageRasterizer.getThreads() > 1) {
+                rasterizer = new PageRasterizer(file, document);
+                job.setPageable(rasterizer);
+            } else {
+                job.setPageable(getPageable(document));
+            }
+            PrintRequestAttributeSet attr = new HashPrintRequestAttributeSet();
+            attr.add(size);
+            attr.add(new Copies(copies));
+            attr.add(new JobName(file.getName(), null));
+            
+            PageFormat pf = job.getPageFormat(attr);
+            Paper paper = pf.getPaper();
+            paper.setImageableArea(0, 0, paper.getWidth(), paper.getHeight());
+            pf.setPaper(paper);
+            
+            try {
                 job.print(attr);
+            } finally {
+                if (rasterizer != null) {
+                    rasterizer.close();
+                }
             }
-        } catch (IOException | PrinterException ex) {
-            logger.warn(ex, ex);
+        } finally {
+            PDFDocuments.release(document);
         }
         logger.debug("print end - " + file);
     }
 
+    /*
+     * Hands the PDF file as it is to a printer that understands PDF, so the
+     * client does not rasterize the pages. A service may print asynchronously,
+     * so this waits for the job to end, for at most monsia.print.job_timeout
+     * seconds(default 60). A service that reports nothing in that time is
+     * taken to have printed.
+     */
+    private static void printPassThrough(File file, int copies, PrintService ps) throws IOException, PrinterException {
+        MediaSizeName size;
+        PDDocument document = PDFDocuments.acquire(file);
+        try {
+            size = getMediaSizeName(document);
+        } finally {
+            PDFDocuments.release(document);
+        }
+        PrintRequestAttributeSet attr = new HashPrintRequestAttributeSet();
+        if (size != null && ps.isAttributeValueSupported(size, DocFlavor.INPUT_STREAM.PDF, null)) {
+            attr.add(size);
+        }
+        attr.add(new Copies(copies));
+        attr.add(new JobName(file.getName(), null));
+
+        DocPrintJob job = ps.createPrintJob();
+        final CompletableFuture<PrintJobEvent> end = new CompletableFuture<>();
+        job.addPrintJobListener(new PrintJobAdapter() {
+
+            @Override
+            public void printDataTransferCompleted(PrintJobEvent pje) {
+                end.complete(pje);
+            }
+
+            @Override
+            public void printJobCompleted(PrintJobEvent pje) {
+                end.complete(pje);
+            }
+
+            @Override
+            public void printJobNoMoreEvents(PrintJobEvent pje) {
+                end.complete(pje);
+            }
+
+            @Override
+            public void printJobFailed(PrintJobEvent pje) {
+                end.complete(pje);
+            }
+
+            @Override
+            public void printJobCanceled(PrintJobEvent pje) {
+                end.complete(pje);
+            }
+        });
+        long timeout = DEFAULT_JOB_TIMEOUT;
+        if (System.getProperty("monsia.print.job_timeout") != null) {
+            timeout = Long.parseLong(System.getProperty("monsia.print.job_timeout")) * 1000;
+        }
+        PrintJobEvent event;
+        // the stream is read until the data transfer is complete
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            job.print(new SimpleDoc(in, DocFlavor.INPUT_STREAM.PDF, null), attr);
+            event = end.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (PrintException ex) {
+            throw new PrinterException(ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PrinterException("interrupted while printing");
+        } catch (ExecutionException ex) {
+            throw new PrinterException(ex.getMessage());
+        } catch (TimeoutException ex) {
+            logger.info("no end of print job " + file + " in " + timeout + "ms");
+            return;
+        }
+        if (event.getPrintEventType() == PrintJobEvent.JOB_FAILED) {
+            throw new PrinterException("print job failed");
+        }
+        if (event.getPrintEventType() == PrintJobEvent.JOB_CANCELED) {
+            throw new PrinterException("print job canceled");
+        }
+    }
+
+    /*
+     * The document may be shared with a preview that renders at the same
+     * time, so every page is printed while synchronized on it.
+     */
+    private static Pageable getPageable(final PDDocument document) {
+        final PDFPageable pageable;
+        synchronized (document) {
+            pageable = new PDFPageable(document);
+        }
+        return new Pageable() {
+
+            @Override
+            public int getNumberOfPages() {
+                synchronized (document) {
+                    return pageable.getNumberOfPages();
+                }
+            }
+
+            @Override
+            public PageFormat getPageFormat(int pageIndex) {
+                synchronized (document) {
+                    return pageable.getPageFormat(pageIndex);
+                }
+            }
+
+            @Override
+            public Printable getPrintable(int pageIndex) {
+                final Printable printable = pageable.getPrintable(pageIndex);
+                return (Graphics graphics, PageFormat pf, int index) -> {
+                    synchronized (document) {
+                        return printable.print(graphics, pf, index);
+                    }
+                };
+            }
+        };
+    }
+
     public static void print(File file) {
         try {
-            try (PDDocument document = PDDocument.load(file)) {
+            PDDocument document = PDFDocuments.acquire(file);
+            try {
                 MediaSizeName size = getMediaSizeName(document);
                 
                 PrinterJob job = PrinterJob.getPrinterJob();
-                job.setPageable(new PDFPageable(document));
+                job.setPageable(getPageable(document));
                 PrintService ps = loadPrintService();
                 if (ps != null) {
                   job.setPrintService(ps);
@@ -83,6 +247,8 @@ public class PDFPrint {
                 job.print(attr);
                 savePrintService(job.getPrintService());
                 savePrintRequestAttributeSet(attr);
+            } finally {
+                PDFDocuments.release(document);
             }
         } catch (IOException | PrinterException ex) {
             logger.warn(ex, ex);
@@ -126,12 +292,22 @@ public class PDFPrint {
       }
     }
 
-    public static MediaSizeName getMediaSizeName(PDDocument document) throws IOException {
-        PDFRenderer renderer = new PDFRenderer(document);
-        BufferedImage image = renderer.renderImageWithDPI(0, 72f);
+    /**
+     * <p>
+     * Finds the paper of the first page from its crop box(the media box
+     * unless the PDF sets one), which is what PDFRenderer renders.</p>
+     *
+     * @param document the document.
+     * @return the nearest media size name.
+     */
+    public static MediaSizeName getMediaSizeName(PDDocument document) {
+        PDRectangle box;
+        synchronized (document) {
+            box = document.getPage(0).getCropBox();
+        }
         float w, h, swp;
-        w = image.getWidth() / 72f;
-        h = image.getHeight() / 72f;
+        w = box.getWidth() / 72f;
+        h = box.getHeight() / 72f;
         if (w > h) {
             swp = w;
             w = h;
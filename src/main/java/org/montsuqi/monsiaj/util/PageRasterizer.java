@@ -0,0 +1,265 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.util;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.print.PageFormat;
+import java.awt.print.Pageable;
+import java.awt.print.Printable;
+import java.awt.print.PrinterException;
+import java.awt.print.PrinterIOException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.printing.PDFPageable;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ * <p>
+ * A Pageable that rasterizes the pages of a PDF ahead of the PrinterJob on a
+ * pool of threads, so the printer is fed at its own speed rather than at the
+ * speed of one PDFBox renderer.</p>
+ * <p>
+ * Each thread renders from its own PDDocument opened from the file through
+ * PDFDocuments, as a PDDocument is not safe to share between threads. While the printer asks
+ * for page n, pages n+1 .. n+monsia.print.prerender_ahead(default twice the
+ * threads) are rendered, as long as the images held stay under
+ * monsia.print.prerender_memory(MB, default 256). Pages are rendered at
+ * monsia.print.dpi(default 300) and placed like PDFPageable places them:
+ * actual size, centered in the imageable area. monsia.print.prerender_threads
+ * sets the threads(default the number of processors, at most 4).</p>
+ */
+public class PageRasterizer implements Pageable, Closeable {
+
+    private static final Logger logger = LogManager.getLogger(PageRasterizer.class);
+    private static final float DEFAULT_DPI = 300f;
+    private static final int MAX_DEFAULT_THREADS = 4;
+    private static final long DEFAULT_MEMORY = 256L * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT = 30;
+
+    private final File file;
+    private final PDDocument document;
+    private final PDFPageable pageable;
+    private final ExecutorService pool;
+    private final ThreadLocal<PDFRenderer> renderers;
+    private final List<PDDocument> documents;
+    private final Map<Integer, Future<BufferedImage>> pages;
+    private final float dpi;
+    private final int ahead;
+    private final long memory;
+
+    /**
+     * <p>
+     * Constructs a PageRasterizer.</p>
+     *
+     * @param file the PDF file, loaded again by every render thread.
+     * @param document the document loaded from file, used for the page
+     * formats.
+     */
+    public PageRasterizer(File file, PDDocument document) {
+        this.file = file;
+        this.document = document;
+        synchronized (document) {
+            pageable = new PDFPageable(document);
+        }
+        int threads = getThreads();
+        float d = DEFAULT_DPI;
+        if (System.getProperty("monsia.print.dpi") != null) {
+            d = Float.parseFloat(System.getProperty("monsia.print.dpi"));
+        }
+        dpi = d;
+        int a = threads * 2;
+        if (System.getProperty("monsia.print.prerender_ahead") != null) {
+            a = Integer.parseInt(System.getProperty("monsia.print.prerender_ahead"));
+        }
+        ahead = Math.max(0, a);
+        long m = DEFAULT_MEMORY;
+        if (System.getProperty("monsia.print.prerender_memory") != null) {
+            m = Long.parseLong(System.getProperty("monsia.print.prerender_memory")) * 1024 * 1024;
+        }
+        memory = m;
+        documents = new ArrayList<>();
+        renderers = new ThreadLocal<>();
+        pages = new TreeMap<>();
+        pool = Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t = new Thread(r, "monsia-print-render");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * <p>
+     * Returns the number of render threads. With one thread rendering ahead
+     * does not pay off.</p>
+     *
+     * @return the number of render threads.
+     */
+    public static int getThreads() {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_THREADS);
+        if (System.getProperty("monsia.print.prerender_threads") != null) {
+            threads = Integer.parseInt(System.getProperty("monsia.print.prerender_threads"));
+        }
+        return Math.max(1, threads);
+    }
+
+    @Override
+    public int getNumberOfPages() {
+        synchronized (document) {
+            return pageable.getNumberOfPages();
+        }
+    }
+
+    @Override
+    public PageFormat getPageFormat(int pageIndex) {
+        synchronized (document) {
+            return pageable.getPageFormat(pageIndex);
+        }
+    }
+
+    @Override
+    public Printable getPrintable(int pageIndex) {
+        return (Graphics graphics, PageFormat pf, int index) -> print(graphics, pf, index);
+    }
+
+    private static PDRectangle getRotatedCropBox(PDPage page) {
+        PDRectangle box = page.getCropBox();
+        int rotation = page.getRotation();
+        if (rotation == 90 || rotation == 270) {
+            return new PDRectangle(box.getLowerLeftX(), box.getLowerLeftY(), box.getHeight(), box.getWidth());
+        }
+        return box;
+    }
+
+    private long estimate(int index) {
+        PDRectangle box;
+        synchronized (document) {
+            box = getRotatedCropBox(document.getPage(index));
+        }
+        float scale = dpi / 72f;
+        return (long) (box.getWidth() * scale) * (long) (box.getHeight() * scale) * 4;
+    }
+
+    private BufferedImage render(int index) throws IOException {
+        PDFRenderer renderer = renderers.get();
+        if (renderer == null) {
+            PDDocument doc = PDFDocuments.open(file);
+            synchronized (documents) {
+                documents.add(doc);
+            }
+            renderer = new PDFRenderer(doc);
+            renderers.set(renderer);
+        }
+        return renderer.renderImageWithDPI(index, dpi, ImageType.RGB);
+    }
+
+    private Future<BufferedImage> submit(int index) {
+        return pool.submit(() -> render(index));
+    }
+
+    /*
+     * Keeps page index and the pages after it within the window and the
+     * memory cap, and drops the others.
+     */
+    private synchronized Future<BufferedImage> schedule(int index) {
+        int last = Math.min(index + ahead, getNumberOfPages() - 1);
+        Iterator<Map.Entry<Integer, Future<BufferedImage>>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<BufferedImage>> e = it.next();
+            if (e.getKey() < index || e.getKey() > last) {
+                e.getValue().cancel(false);
+                it.remove();
+            }
+        }
+        Future<BufferedImage> current = pages.get(index);
+        if (current == null) {
+            current = submit(index);
+            pages.put(index, current);
+        }
+        long used = 0;
+        for (int i : pages.keySet()) {
+            used += estimate(i);
+        }
+        for (int i = index + 1; i <= last; i++) {
+            if (pages.containsKey(i)) {
+                continue;
+            }
+            long size = estimate(i);
+            if (used + size > memory) {
+                break;
+            }
+            used += size;
+            pages.put(i, submit(i));
+        }
+        return current;
+    }
+
+    private int print(Graphics graphics, PageFormat pf, int index) throws PrinterException {
+        if (index < 0 || index >= getNumberOfPages()) {
+            return Printable.NO_SUCH_PAGE;
+        }
+        BufferedImage image;
+        try {
+            image = schedule(index).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PrinterException(ex.toString());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw new PrinterIOException((IOException) ex.getCause());
+            }
+            throw new PrinterException(String.valueOf(ex.getCause()));
+        }
+        PDRectangle box;
+        synchronized (document) {
+            box = getRotatedCropBox(document.getPage(index));
+        }
+        Graphics2D g2 = (Graphics2D) graphics;
+        g2.translate(pf.getImageableX(), pf.getImageableY());
+        g2.translate((pf.getImageableWidth() - box.getWidth()) / 2, (pf.getImageableHeight() - box.getHeight()) / 2);
+        g2.scale(72.0 / dpi, 72.0 / dpi);
+        g2.drawImage(image, 0, 0, null);
+        return Printable.PAGE_EXISTS;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        try {
+            // a running render must not open a document after this
+            pool.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            pages.clear();
+        }
+        synchronized (documents) {
+            for (PDDocument doc : documents) {
+                PDFDocuments.release(doc);
+            }
+            documents.clear();
+        }
+    }
+}
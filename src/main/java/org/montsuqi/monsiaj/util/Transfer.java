@@ -0,0 +1,137 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>
+ * Bulk stream copy used for HTTP bodies, BLOBs and downloads.</p>
+ * <p>
+ * Data is moved in chunks instead of a byte at a time. When the destination is
+ * a file the copy is done with FileChannel.transferFrom so that the data goes
+ * from the source channel to the file without an intermediate user buffer.</p>
+ */
+public class Transfer {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * <p>
+     * Receives the progress of a transfer.</p>
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param transferred bytes copied so far.
+         * @param total expected size, or -1 if unknown.
+         */
+        void progress(long transferred, long total);
+    }
+
+    private Transfer() {
+    }
+
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, -1, null);
+    }
+
+    /**
+     * <p>
+     * Copies <var>in</var> to <var>out</var> until the end of <var>in</var>.
+     * Neither stream is closed.</p>
+     *
+     * @param in source stream.
+     * @param out destination stream.
+     * @param total expected size for the listener, or -1 if unknown.
+     * @param listener progress listener, may be null.
+     * @return the number of bytes copied.
+     * @throws IOException
+     */
+    public static long copy(InputStream in, OutputStream out, long total, ProgressListener listener) throws IOException {
+        byte[] buf = new byte[CHUNK_SIZE];
+        long count = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            count += n;
+            if (listener != null) {
+                listener.progress(count, total);
+            }
+        }
+        return count;
+    }
+
+    public static long copy(InputStream in, File file) throws IOException {
+        return copy(in, file, -1, null);
+    }
+
+    /**
+     * <p>
+     * Copies <var>in</var> into <var>file</var>, replacing its contents.
+     * <var>in</var> is not closed.</p>
+     *
+     * @param in source stream.
+     * @param file destination file.
+     * @param total expected size for the listener, or -1 if unknown.
+     * @param listener progress listener, may be null.
+     * @return the number of bytes copied.
+     * @throws IOException
+     */
+    public static long copy(InputStream in, File file, long total, ProgressListener listener) throws IOException {
+        ReadableByteChannel src = Channels.newChannel(in);
+        long count = 0;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            FileChannel dst = out.getChannel();
+            while (true) {
+                long n = dst.transferFrom(src, count, CHUNK_SIZE);
+                if (n <= 0) {
+                    // transferFrom returns 0 both at EOF and for a short read
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
+                    }
+                    // transferFrom does not move the channel position
+                    dst.write(ByteBuffer.wrap(new byte[]{(byte) b}), count);
+                    n = 1;
+                }
+                count += n;
+                if (listener != null) {
+                    listener.progress(count, total);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * <p>
+     * Reads <var>in</var> to the end into a byte buffer.</p>
+     *
+     * @param in source stream, which is not closed.
+     * @param sizeHint expected size(e.g. Content-Length), or -1 if unknown.
+     * @return the buffer.
+     * @throws IOException
+     */
+    public static ByteArrayOutputStream readAll(InputStream in, long sizeHint) throws IOException {
+        int initial = CHUNK_SIZE;
+        if (sizeHint > 0 && sizeHint < Integer.MAX_VALUE) {
+            initial = (int) sizeHint;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(initial);
+        copy(in, bytes, sizeHint, null);
+        return bytes;
+    }
+}
@@ -67,6 +67,7 @@ public class ExceptionDialog extends JOptionPane {
         if (message == null || message.length() == 0) {
             message = name;
         }
+        TypeAheadEventQueue.cancel();
         JOptionPane.showMessageDialog(null, message, shortName, JOptionPane.ERROR_MESSAGE);
     }
 }
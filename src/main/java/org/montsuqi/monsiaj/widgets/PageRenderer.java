@@ -0,0 +1,310 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.widgets;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import javax.swing.SwingUtilities;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.montsuqi.monsiaj.util.PDFDocuments;
+
+/**
+ * <p>
+ * Renders the pages of a PDF document on a background thread and keeps the
+ * page images in a cache.</p>
+ * <p>
+ * PDFRenderer is not thread safe, so each document has one render thread.
+ * The document may be shared through PDFDocuments, so the thread renders
+ * while synchronized on it and releases it when the renderer is closed.
+ * Requests for the pages on screen go to the head of its queue and
+ * prefetches go to the tail. Requests that fell out of the prefetch window
+ * around the pages on screen before they were started are dropped. The
+ * cache is keyed by page and scale and bounded by monsia.preview.cache_size
+ * (MB, default 64). The least recently used images are dropped first, and
+ * the images are softly referenced so that the VM can drop them when memory
+ * runs short.</p>
+ * <p>
+ * Page sizes come from the crop box and rotation of the page, the same
+ * way PDFRenderer computes them, so no rendering is needed to lay out.</p>
+ */
+class PageRenderer {
+
+    private static final Logger logger = LogManager.getLogger(PageRenderer.class);
+    private static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+    static final int PREFETCH = 1;
+
+    /**
+     * <p>
+     * Receives a rendered page on the event dispatch thread.</p>
+     */
+    interface Listener {
+
+        void rendered(int page, float scale, BufferedImage image);
+    }
+
+    private static final class Key {
+
+        private final int page;
+        private final float scale;
+
+        Key(int page, float scale) {
+            this.page = page;
+            this.scale = scale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return page == k.page && Float.compare(scale, k.scale) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return page * 31 + Float.floatToIntBits(scale);
+        }
+    }
+
+    private static final class Entry {
+
+        private final SoftReference<BufferedImage> image;
+        private final long size;
+
+        Entry(BufferedImage image) {
+            this.image = new SoftReference<>(image);
+            this.size = (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    private final PDDocument document;
+    private final PDFRenderer renderer;
+    private final Listener listener;
+    private final float[] widths;
+    private final float[] heights;
+    private final long maxBytes;
+    private final Map<Key, Entry> cache;
+    private final Set<Key> queued;
+    private final BlockingDeque<Key> queue;
+    private final Key stop;
+    private long cachedBytes;
+    private volatile int focusFirst;
+    private volatile int focusLast;
+    private volatile float focusScale;
+    private volatile boolean closed;
+
+    PageRenderer(PDDocument document, Listener listener) {
+        this.document = document;
+        this.renderer = new PDFRenderer(document);
+        this.listener = listener;
+        int n = document.getNumberOfPages();
+        widths = new float[n];
+        heights = new float[n];
+        int i = 0;
+        for (PDPage p : document.getPages()) {
+            PDRectangle box = p.getCropBox();
+            int rotation = p.getRotation();
+            boolean swap = rotation == 90 || rotation == 270;
+            widths[i] = swap ? box.getHeight() : box.getWidth();
+            heights[i] = swap ? box.getWidth() : box.getHeight();
+            i++;
+        }
+        long size = DEFAULT_CACHE_SIZE;
+        if (System.getProperty("monsia.preview.cache_size") != null) {
+            size = Long.parseLong(System.getProperty("monsia.preview.cache_size")) * 1024 * 1024;
+        }
+        this.maxBytes = size;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.queued = new HashSet<>();
+        this.queue = new LinkedBlockingDeque<>();
+        this.cachedBytes = 0;
+        this.focusFirst = 0;
+        this.focusLast = 0;
+        this.focusScale = 1f;
+        this.closed = false;
+        this.stop = new Key(-1, 0f);
+        Thread thread = new Thread(this::run, "monsia-preview");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getNumPages() {
+        return widths.length;
+    }
+
+    /**
+     * <p>
+     * Returns the size of a page image at <var>scale</var>, as rendered by
+     * PDFRenderer.renderImage.</p>
+     */
+    Dimension getPageSize(int page, float scale) {
+        float w = widths[page];
+        float h = heights[page];
+        return new Dimension((int) Math.max(Math.floor(w * scale), 1), (int) Math.max(Math.floor(h * scale), 1));
+    }
+
+    synchronized BufferedImage getCached(int page, float scale) {
+        Key key = new Key(page, scale);
+        Entry e = cache.get(key);
+        if (e == null) {
+            return null;
+        }
+        BufferedImage image = e.image.get();
+        if (image == null) {
+            // reclaimed by the VM
+            cache.remove(key);
+            cachedBytes -= e.size;
+        }
+        return image;
+    }
+
+    private boolean isWanted(Key key) {
+        return Float.compare(key.scale, focusScale) == 0
+                && key.page >= focusFirst - PREFETCH && key.page <= focusLast + PREFETCH;
+    }
+
+    /**
+     * <p>
+     * Asks for the image of <var>page</var> at <var>scale</var> and prefetches
+     * its neighbours. The listener is called on the event dispatch thread when
+     * the page is rendered, unless it was cached, in which case the image is
+     * returned.</p>
+     *
+     * @return the cached image, or null if it is being rendered.
+     */
+    BufferedImage request(int page, float scale) {
+        requestRange(page, page, scale);
+        return getCached(page, scale);
+    }
+
+    /**
+     * <p>
+     * Asks for the images of the pages from <var>first</var> to
+     * <var>last</var>, the pages on screen, and prefetches the pages around
+     * them. Pages outside of this range are no longer rendered unless they
+     * were started already.</p>
+     */
+    void requestRange(int first, int last, float scale) {
+        focusFirst = first;
+        focusLast = last;
+        focusScale = scale;
+        for (int page = last; page >= first; page--) {
+            enqueue(page, scale, true);
+        }
+        for (int d = 1; d <= PREFETCH; d++) {
+            enqueue(last + d, scale, false);
+            enqueue(first - d, scale, false);
+        }
+    }
+
+    private void enqueue(int page, float scale, boolean first) {
+        if (page < 0 || page >= getNumPages() || getCached(page, scale) != null) {
+            return;
+        }
+        Key key = new Key(page, scale);
+        synchronized (this) {
+            if (!queued.add(key)) {
+                if (!first) {
+                    return;
+                }
+                // move it to the head
+                queue.remove(key);
+            }
+        }
+        if (first) {
+            queue.offerFirst(key);
+        } else {
+            queue.offerLast(key);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            Key key;
+            try {
+                key = queue.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            if (key == stop) {
+                break;
+            }
+            BufferedImage image = getCached(key.page, key.scale);
+            if (image == null) {
+                if (!isWanted(key)) {
+                    synchronized (this) {
+                        queued.remove(key);
+                    }
+                    continue;
+                }
+                try {
+                    synchronized (document) {
+                        image = renderer.renderImage(key.page, key.scale);
+                    }
+                    put(key, image);
+                } catch (IOException | RuntimeException ex) {
+                    logger.debug(ex, ex);
+                }
+            }
+            synchronized (this) {
+                queued.remove(key);
+            }
+            if (image != null) {
+                final BufferedImage result = image;
+                SwingUtilities.invokeLater(() -> {
+                    if (!closed) {
+                        listener.rendered(key.page, key.scale, result);
+                    }
+                });
+            }
+        }
+        PDFDocuments.release(document);
+    }
+
+    private synchronized void put(Key key, BufferedImage image) {
+        Entry entry = new Entry(image);
+        cache.put(key, entry);
+        cachedBytes += entry.size;
+        Iterator<Map.Entry<Key, Entry>> i = cache.entrySet().iterator();
+        while (cachedBytes > maxBytes && i.hasNext()) {
+            Map.Entry<Key, Entry> e = i.next();
+            if (e.getKey().equals(key)) {
+                continue;
+            }
+            cachedBytes -= e.getValue().size;
+            i.remove();
+        }
+    }
+
+    /**
+     * <p>
+     * Stops the render thread, which closes the document when the page it
+     * is rendering is done.</p>
+     */
+    void close() {
+        closed = true;
+        synchronized (this) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+        queue.offerFirst(stop);
+    }
+}
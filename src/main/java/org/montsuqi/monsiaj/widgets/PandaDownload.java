@@ -83,6 +83,7 @@ public class PandaDownload extends JComponent {
     }
 
     public void showDialog(final String fileName, final String description, final File file) throws IOException {
+        TypeAheadEventQueue.cancel();
         final JDialog dialog = new JDialog((JFrame) null, Messages.getString("PandaDownload.title"), true);
         JPanel panel = new JPanel(new BorderLayout(5, 5));
         String descLine = "";
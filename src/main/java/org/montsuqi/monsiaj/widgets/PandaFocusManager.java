@@ -41,6 +41,7 @@ public class PandaFocusManager extends DefaultKeyboardFocusManager {
 		java.awt.Window w = SwingUtilities.windowForComponent(focusedComponent);
 		// Busy windows should not accept key events.
 		if (w instanceof Window && ! ((Window)w).isActive()) {
+			e.consume();
 			return;
 		}
 		// if the event is handled by the Interface, do nothing further.
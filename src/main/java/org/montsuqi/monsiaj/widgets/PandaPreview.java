@@ -36,13 +36,13 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.prefs.Preferences;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
 import javax.swing.event.MouseInputAdapter;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.PDFRenderer;
 import org.montsuqi.monsiaj.util.ExtensionFileFilter;
+import org.montsuqi.monsiaj.util.PDFDocuments;
 import org.montsuqi.monsiaj.util.PDFPrint;
 
 /**
@@ -97,6 +97,7 @@ public class PandaPreview extends JPanel {
     private final Action zoomOutAction;
     private final Action fitPageAction;
     private final Action fitPageWidthAction;
+    private final Action continuousAction;
 
     public PandaPreview() {
         super();
@@ -133,6 +134,7 @@ public class PandaPreview extends JPanel {
         zoomOutAction = new ZoomOutAction();
         fitPageAction = new FitPageAction();
         fitPageWidthAction = new FitPageWidthAction();
+        continuousAction = new ContinuousAction();
 
         combo = new JComboBox<>(SCALE_STRING);
         combo.addActionListener((ActionEvent anEvent) -> {
@@ -154,6 +156,7 @@ public class PandaPreview extends JPanel {
         toolbar.addSeparator();
 
         toolbar.add(combo);
+        toolbar.add(new JToggleButton(continuousAction));
         toolbar.addSeparator();
 
         toolbar.add(saveAction);
@@ -169,8 +172,18 @@ public class PandaPreview extends JPanel {
         HandScrollListener hsl = new HandScrollListener();
         scroll.getViewport().addMouseMotionListener(hsl);
         scroll.getViewport().addMouseListener(hsl);
+        scroll.getViewport().addChangeListener((ChangeEvent e) -> {
+            if (panel.isContinuous()) {
+                int n = panel.getPageNum();
+                if (panel.updatePageFromView() != n) {
+                    pageEntry.setValue(panel.getPageNum() + 1);
+                }
+            }
+        });
         add(scroll, BorderLayout.CENTER);
 
+        panel.setContinuous(prefs.getBoolean("continuous", false));
+        continuousAction.putValue(Action.SELECTED_KEY, panel.isContinuous());
         zoom = Float.parseFloat(prefs.get("zoom", SCALE_FIT_PAGE_WIDTH_STR));
         this.updateCombo();
 
@@ -284,80 +297,197 @@ public class PandaPreview extends JPanel {
         panel.setScale(getRealZoom());
     }
 
-    class PDFPanel extends JPanel {
-
-        private PDDocument document;
-        private PDFRenderer renderer;
+    /**
+     * <p>
+     * Shows one page at a time or, in continuous mode, all pages one below
+     * another. In continuous mode only the pages that intersect the visible
+     * area are drawn and rendered; the others are just laid out from their
+     * page sizes.</p>
+     */
+    class PDFPanel extends JPanel implements PageRenderer.Listener {
+
+        private static final int PAGE_GAP = 8;
+        private PageRenderer renderer;
         private BufferedImage image;
         private float scale;
         private int pageNum;
         private int pageWidth;
         private int pageHeight;
+        private boolean continuous;
+        private int[] pageTops;
 
         public PDFPanel() {
-            document = null;
             renderer = null;
             image = null;
             scale = 1f;
             pageNum = 0;
             pageWidth = 0;
             pageHeight = 0;
+            continuous = false;
+            pageTops = new int[0];
         }
 
         public void load(String file) {
             try {
-                document = PDDocument.load(new File(file));
-                renderer = new PDFRenderer(document);
+                renderer = new PageRenderer(PDFDocuments.acquire(new File(file)), this);
                 setPage(0);
             } catch (IOException ex) {
-                document = null;
                 renderer = null;
                 logger.debug(ex, ex);
             }
         }
 
+        public boolean isContinuous() {
+            return continuous;
+        }
+
+        public void setContinuous(boolean continuous) {
+            this.continuous = continuous;
+            image = null;
+            setScale(scale);
+        }
+
         public void setScale(float z) {
             scale = z;
-            try {
-                image = renderer.renderImage(pageNum, scale);
-            } catch (IOException ex) {
-                logger.debug(ex, ex);
+            if (renderer == null) {
+                return;
+            }
+            if (continuous) {
+                layoutPages();
+                scrollToPage(pageNum);
+            } else {
+                setPreferredSize(new Dimension((int) (pageWidth * scale), (int) (pageHeight * scale)));
+                requestImage();
             }
-            setPreferredSize(new Dimension((int) (pageWidth * scale), (int) (pageHeight * scale)));
             revalidate();
             repaint();
         }
 
-        public int getPageNum() {
-            return pageNum;
+        /*
+         * Shows the cached image of the current page or, until it is
+         * rendered, the image at hand stretched to the page size.
+         */
+        private void requestImage() {
+            BufferedImage cached = renderer.request(pageNum, scale);
+            if (cached != null) {
+                image = cached;
+            }
         }
 
-        public void setPage(int n) {
-            try {
-                if (document == null) {
-                    return;
-                }
-                if (n < 0 || n >= document.getNumberOfPages()) {
-                    n = 0;
+        private void layoutPages() {
+            int n = renderer.getNumPages();
+            pageTops = new int[n + 1];
+            int y = PAGE_GAP;
+            int width = 0;
+            for (int i = 0; i < n; i++) {
+                Dimension size = renderer.getPageSize(i, scale);
+                pageTops[i] = y;
+                y += size.height + PAGE_GAP;
+                width = Math.max(width, size.width);
+            }
+            pageTops[n] = y;
+            setPreferredSize(new Dimension(width + PAGE_GAP * 2, y));
+        }
+
+        /**
+         * <p>
+         * Returns the page at <var>y</var> in continuous mode.</p>
+         */
+        int pageAt(int y) {
+            int n = pageTops.length - 1;
+            if (n <= 0) {
+                return 0;
+            }
+            int lo = 0;
+            int hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) / 2;
+                if (pageTops[mid] <= y) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
                 }
-                pageNum = n;
-                pageWidth = 0;
-                pageHeight = 0;
+            }
+            return lo;
+        }
 
-                image = renderer.renderImage(pageNum, 1f);
-                pageWidth = image.getWidth();
-                pageHeight = image.getHeight();
-                setPreferredSize(new Dimension((int) (pageWidth * scale), (int) (pageHeight * scale)));
-                image = renderer.renderImage(pageNum, scale);
-                revalidate();
+        private void scrollToPage(int n) {
+            if (!(getParent() instanceof JViewport) || n >= pageTops.length) {
+                return;
+            }
+            JViewport viewport = (JViewport) getParent();
+            final Point p = new Point(viewport.getViewPosition().x, Math.max(0, pageTops[n] - PAGE_GAP));
+            // after the new preferred size is laid out
+            SwingUtilities.invokeLater(() -> {
+                int maxY = Math.max(0, getHeight() - viewport.getExtentSize().height);
+                viewport.setViewPosition(new Point(p.x, Math.min(p.y, maxY)));
+            });
+        }
+
+        /**
+         * <p>
+         * Tracks the page at the top third of the viewport in continuous mode.
+         * </p>
+         *
+         * @return the current page.
+         */
+        int updatePageFromView() {
+            if (continuous && renderer != null && getParent() instanceof JViewport) {
+                JViewport viewport = (JViewport) getParent();
+                Rectangle view = viewport.getViewRect();
+                pageNum = pageAt(view.y + view.height / 3);
+                Dimension size = renderer.getPageSize(pageNum, 1f);
+                pageWidth = size.width;
+                pageHeight = size.height;
+            }
+            return pageNum;
+        }
+
+        @Override
+        public void rendered(int page, float s, BufferedImage rendered) {
+            if (Float.compare(s, scale) != 0) {
+                return;
+            }
+            if (continuous) {
+                if (page < pageTops.length - 1) {
+                    repaint(0, pageTops[page], getWidth(), pageTops[page + 1] - pageTops[page]);
+                }
+            } else if (page == pageNum) {
+                image = rendered;
                 repaint();
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(PandaPreview.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
             }
         }
 
+        public int getPageNum() {
+            return pageNum;
+        }
+
+        public void setPage(int n) {
+            if (renderer == null) {
+                return;
+            }
+            if (n < 0 || n >= renderer.getNumPages()) {
+                n = 0;
+            }
+            if (n != pageNum) {
+                image = null;
+            }
+            pageNum = n;
+            Dimension size = renderer.getPageSize(pageNum, 1f);
+            pageWidth = size.width;
+            pageHeight = size.height;
+            if (continuous) {
+                scrollToPage(pageNum);
+                return;
+            }
+            setPreferredSize(new Dimension((int) (pageWidth * scale), (int) (pageHeight * scale)));
+            requestImage();
+            revalidate();
+            repaint();
+        }
+
         public int getPageWidth() {
-            if (document != null) {
+            if (renderer != null) {
                 return pageWidth;
             } else {
                 return 0;
@@ -365,7 +495,7 @@ public class PandaPreview extends JPanel {
         }
 
         public int getPageHeight() {
-            if (document != null) {
+            if (renderer != null) {
                 return pageHeight;
             } else {
                 return 0;
@@ -373,25 +503,62 @@ public class PandaPreview extends JPanel {
         }
 
         public int getNumPages() {
-            if (document != null) {
-                return document.getNumberOfPages();
+            if (renderer != null) {
+                return renderer.getNumPages();
             } else {
                 return 0;
             }
         }
 
         public void clear() {
-            document = null;
+            if (renderer != null) {
+                renderer.close();
+            }
             renderer = null;
             image = null;
             pageNum = 0;
+            pageTops = new int[0];
             this.revalidate();
         }
 
+        private void drawPage(Graphics2D g2, BufferedImage img, int x, int y, int w, int h) {
+            if (img == null) {
+                // placeholder until the page is rendered
+                g2.setColor(Color.WHITE);
+                g2.fillRect(x, y, w, h);
+            } else if (img.getWidth() == w && img.getHeight() == h) {
+                g2.drawImage(img, x, y, this);
+            } else {
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2.drawImage(img, x, y, w, h, this);
+            }
+        }
+
+        private void paintContinuous(Graphics2D g2) {
+            Rectangle clip = g2.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            int first = pageAt(clip.y);
+            int last = pageAt(clip.y + clip.height);
+            for (int i = first; i <= last; i++) {
+                Dimension size = renderer.getPageSize(i, scale);
+                int x = (getWidth() - size.width) / 2;
+                drawPage(g2, renderer.getCached(i, scale), x, pageTops[i], size.width, size.height);
+            }
+            // the pages of the whole view, not only of this clip
+            if (getParent() instanceof JViewport) {
+                Rectangle view = ((JViewport) getParent()).getViewRect();
+                first = pageAt(view.y);
+                last = pageAt(view.y + view.height);
+            }
+            renderer.requestRange(first, last, scale);
+        }
+
         @Override
         public void paint(Graphics g) {
             Graphics2D g2 = (Graphics2D) g;
-            if (document == null || renderer == null) {
+            if (renderer == null) {
                 g2.setBackground(Color.WHITE);
                 g2.clearRect(0, 0, getWidth(), getHeight());
                 return;
@@ -399,11 +566,16 @@ public class PandaPreview extends JPanel {
 
             g2.setBackground(Color.GRAY);
             g2.clearRect(0, 0, getWidth(), getHeight());
-            if (image != null) {
-                int cx = (int) ((this.getWidth() / 2.0) - (image.getWidth(this) / 2.0));
-                int cy = (int) ((this.getHeight() / 2.0) - (image.getHeight(this) / 2.0));
-                g2.drawImage(image, cx, cy, this);
+            if (continuous) {
+                paintContinuous(g2);
+                return;
             }
+            Dimension size = renderer.getPageSize(pageNum, scale);
+            int w = size.width;
+            int h = size.height;
+            int cx = (int) ((this.getWidth() / 2.0) - (w / 2.0));
+            int cy = (int) ((this.getHeight() / 2.0) - (h / 2.0));
+            drawPage(g2, image, cx, cy, w, h);
         }
     }
 
@@ -579,6 +751,23 @@ public class PandaPreview extends JPanel {
         }
     }
 
+    private final class ContinuousAction extends AbstractAction {
+
+        private static final long serialVersionUID = 1L;
+
+        ContinuousAction() {
+            putValue(Action.NAME, Messages.getString("PandaPreview.continuous"));
+            putValue(Action.SHORT_DESCRIPTION, Messages.getString("PandaPreview.continuous_short_description"));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            boolean continuous = Boolean.TRUE.equals(getValue(Action.SELECTED_KEY));
+            prefs.putBoolean("continuous", continuous);
+            panel.setContinuous(continuous);
+        }
+    }
+
     private final class FitPageWidthAction extends AbstractAction {
 
         @Override
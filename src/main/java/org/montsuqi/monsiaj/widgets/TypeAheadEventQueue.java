@@ -0,0 +1,193 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.montsuqi.monsiaj.widgets;
+
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.Dialog;
+import java.awt.EventQueue;
+import java.awt.KeyboardFocusManager;
+import java.awt.Toolkit;
+import java.awt.event.InputMethodEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * An event queue which holds user input while a request to the server is in
+ * progress.</p>
+ * <p>
+ * Between hold() and release() key events, input method events and mouse
+ * button events are not dispatched but kept in order. release() posts them
+ * again, so that what was typed during the round trip goes to the new screen.
+ * If a replayed event starts another request the rest is held again, so the
+ * order is preserved. Set monsia.disable_typeahead to drop the input as
+ * before.</p>
+ * <p>
+ * Input to a modal dialog(an error, a download, a JOptionPane) is never
+ * held, since the request that holds may wait for the dialog to close.</p>
+ */
+public class TypeAheadEventQueue extends EventQueue {
+
+    private static final Logger logger = LogManager.getLogger(TypeAheadEventQueue.class);
+    private static final int MAX_EVENTS = 1024;
+    private static TypeAheadEventQueue instance;
+    private final List<AWTEvent> held;
+    private boolean holding;
+
+    private TypeAheadEventQueue() {
+        held = new ArrayList<>();
+        holding = false;
+    }
+
+    /**
+     * <p>
+     * Installs the queue on top of the system event queue.</p>
+     */
+    public static synchronized void install() {
+        if (instance != null || System.getProperty("monsia.disable_typeahead") != null) {
+            return;
+        }
+        instance = new TypeAheadEventQueue();
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(instance);
+    }
+
+    /**
+     * <p>
+     * Starts holding user input. Called on the event dispatch thread.</p>
+     */
+    public static void hold() {
+        if (instance != null) {
+            instance.holding = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Stops holding and posts the held input again. Called on the event
+     * dispatch thread after the new screen is applied.</p>
+     */
+    public static void release() {
+        if (instance != null) {
+            instance.replay();
+        }
+    }
+
+    /**
+     * <p>
+     * Stops holding and drops the held input. Called when the request that
+     * holds fails and the screen is not updated.</p>
+     */
+    public static void cancel() {
+        if (instance == null) {
+            return;
+        }
+        if (!EventQueue.isDispatchThread()) {
+            EventQueue.invokeLater(TypeAheadEventQueue::cancel);
+            return;
+        }
+        instance.holding = false;
+        if (!instance.held.isEmpty()) {
+            logger.debug("drop " + instance.held.size() + " events");
+            instance.held.clear();
+        }
+    }
+
+    private void replay() {
+        holding = false;
+        if (held.isEmpty()) {
+            return;
+        }
+        logger.debug("replay " + held.size() + " events");
+        List<AWTEvent> events = new ArrayList<>(held);
+        held.clear();
+        for (AWTEvent e : events) {
+            AWTEvent copy = copyEvent(e);
+            if (copy != null) {
+                postEvent(copy);
+            }
+        }
+    }
+
+    private static boolean isForModalDialog(AWTEvent e) {
+        if (!(e.getSource() instanceof Component)) {
+            return false;
+        }
+        Component c = (Component) e.getSource();
+        java.awt.Window w = c instanceof java.awt.Window ? (java.awt.Window) c : SwingUtilities.getWindowAncestor(c);
+        return w instanceof Dialog && ((Dialog) w).isModal();
+    }
+
+    private static boolean isHeldEvent(AWTEvent e) {
+        if (isForModalDialog(e)) {
+            return false;
+        }
+        if (e instanceof KeyEvent || e instanceof InputMethodEvent) {
+            return true;
+        }
+        switch (e.getID()) {
+            case MouseEvent.MOUSE_PRESSED:
+            case MouseEvent.MOUSE_RELEASED:
+            case MouseEvent.MOUSE_CLICKED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * <p>
+     * Makes a new event to post. Key and input method events go to the
+     * current focus owner, which may be a widget of the new screen. The time
+     * stamp is renewed so that the focus manager orders them after the focus
+     * change made by the screen update.</p>
+     */
+    private static AWTEvent copyEvent(AWTEvent e) {
+        long when = System.currentTimeMillis();
+        Component owner = KeyboardFocusManager.getCurrentKeyboardFocusManager().getFocusOwner();
+        if (e instanceof KeyEvent) {
+            KeyEvent k = (KeyEvent) e;
+            Component target = owner != null ? owner : k.getComponent();
+            if (target == null || !target.isShowing()) {
+                return null;
+            }
+            return new KeyEvent(target, k.getID(), when, k.getModifiersEx(), k.getKeyCode(), k.getKeyChar(), k.getKeyLocation());
+        } else if (e instanceof InputMethodEvent) {
+            InputMethodEvent i = (InputMethodEvent) e;
+            Component target = owner != null ? owner : (Component) i.getSource();
+            if (target == null || !target.isShowing()) {
+                return null;
+            }
+            return new InputMethodEvent(target, i.getID(), when, i.getText(), i.getCommittedCharacterCount(), i.getCaret(), i.getVisiblePosition());
+        } else if (e instanceof MouseEvent) {
+            MouseEvent m = (MouseEvent) e;
+            Component target = m.getComponent();
+            if (target == null || !target.isShowing()) {
+                return null;
+            }
+            return new MouseEvent(target, m.getID(), when, m.getModifiersEx(), m.getX(), m.getY(), m.getXOnScreen(), m.getYOnScreen(), m.getClickCount(), m.isPopupTrigger(), m.getButton());
+        }
+        return null;
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent e) {
+        if (holding && isHeldEvent(e)) {
+            if (held.size() < MAX_EVENTS) {
+                held.add(e);
+            } else {
+                logger.warn("typeahead buffer full, event dropped");
+            }
+            return;
+        }
+        super.dispatchEvent(e);
+    }
+}